@@ -0,0 +1,94 @@
+package si.trplan.lox;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
+
+/**
+ * Keeps resolved syntax trees on disk so an unchanged script doesn't have to be scanned, parsed and resolved again.
+ * Entries are named after the SHA-256 of the source and start with AstSerializer.VERSION, so a changed script or
+ * a build with different AST classes simply misses. The cache is best effort, any I/O problem counts as a miss.
+ */
+class AstCache {
+    private static final int MAGIC = 0x4c4f5841; // "LOXA"
+    // Bump whenever the parser or resolver start producing different trees for the same source
+    private static final int FRONT_END_VERSION = 3;
+
+    private final Path directory;
+
+    AstCache(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @return The key of the source, its position is left alone
+     */
+    static String key(ByteBuffer source) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(source.duplicate());
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return The cached statements or null if there is no valid entry for the key
+     */
+    List<Stmt> load(String key) {
+        try (InputStream file = Files.newInputStream(directory.resolve(key))) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(file));
+            if (in.readInt() != MAGIC || in.readInt() != AstSerializer.VERSION ||
+                    in.readInt() != FRONT_END_VERSION) return null;
+            return new AstSerializer.Reader(in).readStmtList(Stmt.class);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException | RuntimeException e) {
+            // A truncated or corrupt entry, it gets overwritten once the script is parsed again
+            return null;
+        }
+    }
+
+    void store(String key, List<Stmt> statements) {
+        Path temporary = null;
+        try {
+            Files.createDirectories(directory);
+            // Write to a temporary file first so a concurrent run never sees half an entry
+            temporary = Files.createTempFile(directory, key, ".tmp");
+            try (OutputStream file = Files.newOutputStream(temporary)) {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+                out.writeInt(MAGIC);
+                out.writeInt(AstSerializer.VERSION);
+                out.writeInt(FRONT_END_VERSION);
+                new AstSerializer.Writer(out).writeStmtList(statements);
+                out.flush();
+            }
+            Files.move(temporary, directory.resolve(key), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            // Not being able to cache is not an error, the next run just parses again
+            if (temporary != null) {
+                try {
+                    Files.deleteIfExists(temporary);
+                } catch (IOException ignored) {
+                    // Nothing more to do about it
+                }
+            }
+        }
+    }
+}
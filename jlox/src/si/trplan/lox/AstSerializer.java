@@ -0,0 +1,396 @@
+package si.trplan.lox;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary form of resolved syntax trees, generated by GenerateAst
+ */
+class AstSerializer {
+ static final int VERSION = -1196339345;
+
+ static class Writer {
+ private final DataOutputStream out;
+ // Strings already written, later occurrences are written as their index
+ private final Map<String, Integer> strings = new HashMap<>();
+
+ Writer(DataOutputStream out) {
+ this.out = out;
+ }
+
+ void writeExpr(Expr expr) throws IOException {
+ switch (expr) {
+ case null -> out.writeByte(0);
+ case Expr.Assign node -> {
+ out.writeByte(1);
+ writeToken(node.name);
+ writeExpr(node.value);
+ out.writeInt(node.depth);
+ out.writeInt(node.slot);
+ }
+ case Expr.Binary node -> {
+ out.writeByte(2);
+ writeExpr(node.left);
+ writeToken(node.operator);
+ writeExpr(node.right);
+ }
+ case Expr.Logical node -> {
+ out.writeByte(3);
+ writeExpr(node.left);
+ writeToken(node.operator);
+ writeExpr(node.right);
+ }
+ case Expr.Grouping node -> {
+ out.writeByte(4);
+ writeExpr(node.expression);
+ }
+ case Expr.Call node -> {
+ out.writeByte(5);
+ writeExpr(node.callee);
+ writeToken(node.paren);
+ writeExprList(node.arguments);
+ }
+ case Expr.Literal node -> {
+ out.writeByte(6);
+ writeValue(node.value);
+ }
+ case Expr.Unary node -> {
+ out.writeByte(7);
+ writeToken(node.operator);
+ writeExpr(node.right);
+ }
+ case Expr.Set node -> {
+ out.writeByte(8);
+ writeExpr(node.object);
+ writeToken(node.name);
+ writeExpr(node.value);
+ }
+ case Expr.Variable node -> {
+ out.writeByte(9);
+ writeToken(node.name);
+ out.writeInt(node.depth);
+ out.writeInt(node.slot);
+ }
+ case Expr.Function node -> {
+ out.writeByte(10);
+ writeTokenList(node.params);
+ writeStmtList(node.body);
+ }
+ case Expr.Get node -> {
+ out.writeByte(11);
+ writeExpr(node.object);
+ writeToken(node.name);
+ }
+ case Expr.This node -> {
+ out.writeByte(12);
+ writeToken(node.keyword);
+ out.writeInt(node.depth);
+ out.writeInt(node.slot);
+ }
+ case Expr.Super node -> {
+ out.writeByte(13);
+ writeToken(node.keyword);
+ writeToken(node.method);
+ out.writeInt(node.depth);
+ out.writeInt(node.thisDepth);
+ }
+ default -> throw new IllegalArgumentException("Unknown node " + expr);
+ }
+ }
+
+ void writeStmt(Stmt stmt) throws IOException {
+ switch (stmt) {
+ case null -> out.writeByte(0);
+ case Stmt.Expression node -> {
+ out.writeByte(1);
+ writeExpr(node.expression);
+ }
+ case Stmt.Print node -> {
+ out.writeByte(2);
+ writeExpr(node.expresion);
+ }
+ case Stmt.Var node -> {
+ out.writeByte(3);
+ writeToken(node.name);
+ writeExpr(node.initializer);
+ }
+ case Stmt.Block node -> {
+ out.writeByte(4);
+ writeStmtList(node.statements);
+ }
+ case Stmt.Function node -> {
+ out.writeByte(5);
+ writeToken(node.name);
+ writeTokenList(node.params);
+ writeStmtList(node.body);
+ }
+ case Stmt.If node -> {
+ out.writeByte(6);
+ writeExpr(node.condition);
+ writeStmt(node.thenBranch);
+ writeStmt(node.elseBranch);
+ }
+ case Stmt.While node -> {
+ out.writeByte(7);
+ writeExpr(node.condition);
+ writeStmt(node.statement);
+ }
+ case Stmt.Break node -> {
+ out.writeByte(8);
+ writeToken(node.keyword);
+ }
+ case Stmt.Return node -> {
+ out.writeByte(9);
+ writeToken(node.keyword);
+ writeExpr(node.value);
+ }
+ case Stmt.Class node -> {
+ out.writeByte(10);
+ writeToken(node.name);
+ writeExpr(node.superclass);
+ writeStmtList(node.methods);
+ writeStmtList(node.getters);
+ }
+ default -> throw new IllegalArgumentException("Unknown node " + stmt);
+ }
+ }
+
+ void writeExprList(List<? extends Expr> list) throws IOException {
+ out.writeInt(list.size());
+ for (Expr expr : list) writeExpr(expr);
+ }
+
+ void writeStmtList(List<? extends Stmt> list) throws IOException {
+ out.writeInt(list.size());
+ for (Stmt stmt : list) writeStmt(stmt);
+ }
+
+ void writeTokenList(List<Token> list) throws IOException {
+ out.writeInt(list.size());
+ for (Token token : list) writeToken(token);
+ }
+
+ void writeToken(Token token) throws IOException {
+ if (token == null) {
+ out.writeByte(-1);
+ return;
+ }
+ out.writeByte(token.type.ordinal());
+ writeString(token.lexeme);
+ writeValue(token.literal);
+ out.writeInt(token.line);
+ out.writeInt(token.symbol);
+ }
+
+ void writeValue(Object value) throws IOException {
+ switch (value) {
+ case null -> out.writeByte(0);
+ case Boolean bool -> out.writeByte(bool ? 1 : 2);
+ case Double number -> {
+ out.writeByte(3);
+ out.writeDouble(number);
+ }
+ case String string -> {
+ out.writeByte(4);
+ writeString(string);
+ }
+ default -> throw new IllegalArgumentException("Can't serialize literal " + value);
+ }
+ }
+
+ void writeString(String string) throws IOException {
+ Integer index = strings.get(string);
+ if (index != null) {
+ out.writeInt(index);
+ return;
+ }
+ // A new string is written as the next index followed by its UTF-8 bytes
+ out.writeInt(strings.size());
+ byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+ out.writeInt(bytes.length);
+ out.write(bytes);
+ strings.put(string, strings.size());
+ }
+ }
+
+ static class Reader {
+ private final DataInputStream in;
+ private final List<String> strings = new ArrayList<>();
+
+ Reader(DataInputStream in) {
+ this.in = in;
+ }
+
+ Expr readExpr() throws IOException {
+ byte tag = in.readByte();
+ switch (tag) {
+ case 0: return null;
+ case 1: {
+ Expr.Assign node = new Expr.Assign(readToken(), readExpr());
+ node.depth = in.readInt();
+ node.slot = in.readInt();
+ return node;
+ }
+ case 2: {
+ Expr.Binary node = new Expr.Binary(readExpr(), readToken(), readExpr());
+ return node;
+ }
+ case 3: {
+ Expr.Logical node = new Expr.Logical(readExpr(), readToken(), readExpr());
+ return node;
+ }
+ case 4: {
+ Expr.Grouping node = new Expr.Grouping(readExpr());
+ return node;
+ }
+ case 5: {
+ Expr.Call node = new Expr.Call(readExpr(), readToken(), readExprList(Expr.class));
+ return node;
+ }
+ case 6: {
+ Expr.Literal node = new Expr.Literal(readValue());
+ return node;
+ }
+ case 7: {
+ Expr.Unary node = new Expr.Unary(readToken(), readExpr());
+ return node;
+ }
+ case 8: {
+ Expr.Set node = new Expr.Set(readExpr(), readToken(), readExpr());
+ return node;
+ }
+ case 9: {
+ Expr.Variable node = new Expr.Variable(readToken());
+ node.depth = in.readInt();
+ node.slot = in.readInt();
+ return node;
+ }
+ case 10: {
+ Expr.Function node = new Expr.Function(readTokenList(), readStmtList(Stmt.class));
+ return node;
+ }
+ case 11: {
+ Expr.Get node = new Expr.Get(readExpr(), readToken());
+ return node;
+ }
+ case 12: {
+ Expr.This node = new Expr.This(readToken());
+ node.depth = in.readInt();
+ node.slot = in.readInt();
+ return node;
+ }
+ case 13: {
+ Expr.Super node = new Expr.Super(readToken(), readToken());
+ node.depth = in.readInt();
+ node.thisDepth = in.readInt();
+ return node;
+ }
+ default: throw new IOException("Bad Expr tag " + tag);
+ }
+ }
+
+ Stmt readStmt() throws IOException {
+ byte tag = in.readByte();
+ switch (tag) {
+ case 0: return null;
+ case 1: {
+ Stmt.Expression node = new Stmt.Expression(readExpr());
+ return node;
+ }
+ case 2: {
+ Stmt.Print node = new Stmt.Print(readExpr());
+ return node;
+ }
+ case 3: {
+ Stmt.Var node = new Stmt.Var(readToken(), readExpr());
+ return node;
+ }
+ case 4: {
+ Stmt.Block node = new Stmt.Block(readStmtList(Stmt.class));
+ return node;
+ }
+ case 5: {
+ Stmt.Function node = new Stmt.Function(readToken(), readTokenList(), readStmtList(Stmt.class));
+ return node;
+ }
+ case 6: {
+ Stmt.If node = new Stmt.If(readExpr(), readStmt(), readStmt());
+ return node;
+ }
+ case 7: {
+ Stmt.While node = new Stmt.While(readExpr(), readStmt());
+ return node;
+ }
+ case 8: {
+ Stmt.Break node = new Stmt.Break(readToken());
+ return node;
+ }
+ case 9: {
+ Stmt.Return node = new Stmt.Return(readToken(), readExpr());
+ return node;
+ }
+ case 10: {
+ Stmt.Class node = new Stmt.Class(readToken(), (Expr.Variable) readExpr(), readStmtList(Stmt.Function.class), readStmtList(Stmt.Function.class));
+ return node;
+ }
+ default: throw new IOException("Bad Stmt tag " + tag);
+ }
+ }
+
+ <T extends Expr> List<T> readExprList(Class<T> type) throws IOException {
+ int size = in.readInt();
+ List<T> list = new ArrayList<>(size);
+ for (int i = 0; i < size; i++) list.add(type.cast(readExpr()));
+ return list;
+ }
+
+ <T extends Stmt> List<T> readStmtList(Class<T> type) throws IOException {
+ int size = in.readInt();
+ List<T> list = new ArrayList<>(size);
+ for (int i = 0; i < size; i++) list.add(type.cast(readStmt()));
+ return list;
+ }
+
+ List<Token> readTokenList() throws IOException {
+ int size = in.readInt();
+ List<Token> list = new ArrayList<>(size);
+ for (int i = 0; i < size; i++) list.add(readToken());
+ return list;
+ }
+
+ Token readToken() throws IOException {
+ byte type = in.readByte();
+ if (type == -1) return null;
+ return new Token(TokenType.values()[type], readString(), readValue(), in.readInt(), in.readInt());
+ }
+
+ Object readValue() throws IOException {
+ byte tag = in.readByte();
+ return switch (tag) {
+ case 0 -> null;
+ case 1 -> true;
+ case 2 -> false;
+ case 3 -> in.readDouble();
+ // String values are interned like the ones the Scanner makes
+ case 4 -> readString().intern();
+ default -> throw new IOException("Bad literal tag " + tag);
+ };
+ }
+
+ String readString() throws IOException {
+ int index = in.readInt();
+ if (index < strings.size()) return strings.get(index);
+ byte[] bytes = new byte[in.readInt()];
+ in.readFully(bytes);
+ String string = new String(bytes, StandardCharsets.UTF_8);
+ strings.add(string);
+ return string;
+ }
+ }
+}
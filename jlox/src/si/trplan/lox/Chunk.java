@@ -0,0 +1,37 @@
+package si.trplan.lox;
+
+import java.util.Arrays;
+
+/**
+ * A sequence of bytecode with its constant pool, see clox's chunk.c.
+ */
+class Chunk {
+    byte[] code = new byte[8];
+    // The source line of every byte in code
+    int[] lines = new int[8];
+    int count = 0;
+
+    Object[] constants = new Object[8];
+    int constantCount = 0;
+
+    void write(byte b, int line) {
+        if (count == code.length) {
+            code = Arrays.copyOf(code, count * 2);
+            lines = Arrays.copyOf(lines, count * 2);
+        }
+        code[count] = b;
+        lines[count] = line;
+        count++;
+    }
+
+    /**
+     * @return The index of the value in the constant pool
+     */
+    int addConstant(Object value) {
+        if (constantCount == constants.length) {
+            constants = Arrays.copyOf(constants, constantCount * 2);
+        }
+        constants[constantCount] = value;
+        return constantCount++;
+    }
+}
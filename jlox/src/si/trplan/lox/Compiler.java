@@ -0,0 +1,615 @@
+package si.trplan.lox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compiles a parsed program into bytecode for the VM in a single pass over the AST. It follows clox's
+ * compiler.c, so locals live on the VM stack and closures capture them through upvalues.
+ */
+class Compiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private static final int UINT8_COUNT = 256;
+    private static final int UINT16_MAX = 65535;
+    // Value of a variable declared without an initializer, same as in the Interpreter
+    static final Object UNASSIGNED = new Environment.Unassigned();
+
+    private enum FunctionType {
+        SCRIPT,
+        FUNCTION,
+        INITIALIZER,
+        METHOD
+    }
+
+    private static class Local {
+        final String name;
+        final int depth;
+        boolean isCaptured = false;
+
+        Local(String name, int depth) {
+            this.name = name;
+            this.depth = depth;
+        }
+    }
+
+    private static class Upvalue {
+        final int index;
+        final boolean isLocal;
+
+        Upvalue(int index, boolean isLocal) {
+            this.index = index;
+            this.isLocal = isLocal;
+        }
+    }
+
+    private static class Loop {
+        final Loop enclosing;
+        final int scopeDepth;
+        final List<Integer> breakJumps = new ArrayList<>();
+
+        Loop(Loop enclosing, int scopeDepth) {
+            this.enclosing = enclosing;
+            this.scopeDepth = scopeDepth;
+        }
+    }
+
+    private static class FunctionState {
+        final FunctionState enclosing;
+        final Obj.Function function;
+        final FunctionType type;
+        final List<Local> locals = new ArrayList<>();
+        final List<Upvalue> upvalues = new ArrayList<>();
+        final Map<Object, Integer> constants = new HashMap<>();
+        int scopeDepth = 0;
+        Loop loop = null;
+
+        FunctionState(FunctionState enclosing, FunctionType type, String name) {
+            this.enclosing = enclosing;
+            this.type = type;
+            this.function = new Obj.Function(name);
+
+            // Slot 0 holds the receiver in methods and the called function otherwise
+            boolean isMethod = type == FunctionType.METHOD || type == FunctionType.INITIALIZER;
+            locals.add(new Local(isMethod ? "this" : "", 0));
+        }
+    }
+
+    private FunctionState current = null;
+    private int line = 0;
+    private boolean hadError = false;
+
+    /**
+     * @return The top-level function of the program or null if there was a compile error
+     */
+    Obj.Function compile(List<Stmt> statements) {
+        current = new FunctionState(null, FunctionType.SCRIPT, null);
+        for (Stmt statement : statements) {
+            compile(statement);
+        }
+        emitReturn();
+
+        return hadError ? null : current.function;
+    }
+
+    /**
+     * Compiles a single expression into a script that returns its value, used by the REPL
+     */
+    Obj.Function compileExpression(Expr expr) {
+        current = new FunctionState(null, FunctionType.SCRIPT, null);
+        compile(expr);
+        emitOp(OpCode.RETURN);
+
+        return hadError ? null : current.function;
+    }
+
+    private void compile(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    private void compile(Expr expr) {
+        expr.accept(this);
+    }
+
+    private Chunk currentChunk() {
+        return current.function.chunk;
+    }
+
+    private void error(String message) {
+        Lox.error(line, message);
+        hadError = true;
+    }
+
+    private void emitByte(int b) {
+        currentChunk().write((byte) b, line);
+    }
+
+    private void emitOp(byte op) {
+        currentChunk().write(op, line);
+    }
+
+    private void emitShort(int value) {
+        emitByte((value >> 8) & 0xff);
+        emitByte(value & 0xff);
+    }
+
+    private void emitReturn() {
+        if (current.type == FunctionType.INITIALIZER) {
+            emitOp(OpCode.GET_LOCAL);
+            emitByte(0);
+        } else {
+            emitOp(OpCode.NIL);
+        }
+        emitOp(OpCode.RETURN);
+    }
+
+    private int emitJump(byte op) {
+        emitOp(op);
+        emitShort(0xffff);
+        return currentChunk().count - 2;
+    }
+
+    private void patchJump(int offset) {
+        // -2 to adjust for the bytes of the jump offset itself
+        int jump = currentChunk().count - offset - 2;
+        if (jump > UINT16_MAX) {
+            error("Too much code to jump over.");
+        }
+        currentChunk().code[offset] = (byte) ((jump >> 8) & 0xff);
+        currentChunk().code[offset + 1] = (byte) (jump & 0xff);
+    }
+
+    private void emitLoop(int loopStart) {
+        emitOp(OpCode.LOOP);
+        int offset = currentChunk().count - loopStart + 2;
+        if (offset > UINT16_MAX) error("Loop body too large.");
+        emitShort(offset);
+    }
+
+    private int makeConstant(Object value) {
+        Integer index = current.constants.get(value);
+        if (index != null) return index;
+
+        index = currentChunk().addConstant(value);
+        if (index > UINT16_MAX) {
+            error("Too many constants in one chunk.");
+            return 0;
+        }
+        current.constants.put(value, index);
+        return index;
+    }
+
+    private void emitConstant(Object value) {
+        emitOp(OpCode.CONSTANT);
+        emitShort(makeConstant(value));
+    }
+
+    private void beginScope() {
+        current.scopeDepth++;
+    }
+
+    private void endScope() {
+        current.scopeDepth--;
+
+        List<Local> locals = current.locals;
+        while (!locals.isEmpty() && locals.getLast().depth > current.scopeDepth) {
+            emitOp(locals.getLast().isCaptured ? OpCode.CLOSE_UPVALUE : OpCode.POP);
+            locals.removeLast();
+        }
+    }
+
+    private void addLocal(String name) {
+        if (current.locals.size() == UINT8_COUNT) {
+            error("Too many local variables in function.");
+            return;
+        }
+        current.locals.add(new Local(name, current.scopeDepth));
+    }
+
+    private static int resolveLocal(FunctionState state, String name) {
+        for (int i = state.locals.size() - 1; i >= 0; i--) {
+            if (state.locals.get(i).name.equals(name)) return i;
+        }
+        return -1;
+    }
+
+    private int addUpvalue(FunctionState state, int index, boolean isLocal) {
+        for (int i = 0; i < state.upvalues.size(); i++) {
+            Upvalue upvalue = state.upvalues.get(i);
+            if (upvalue.index == index && upvalue.isLocal == isLocal) return i;
+        }
+
+        if (state.upvalues.size() == UINT8_COUNT) {
+            error("Too many closure variables in function.");
+            return 0;
+        }
+
+        state.upvalues.add(new Upvalue(index, isLocal));
+        return state.function.upvalueCount++;
+    }
+
+    private int resolveUpvalue(FunctionState state, String name) {
+        if (state.enclosing == null) return -1;
+
+        int local = resolveLocal(state.enclosing, name);
+        if (local != -1) {
+            state.enclosing.locals.get(local).isCaptured = true;
+            return addUpvalue(state, local, true);
+        }
+
+        int upvalue = resolveUpvalue(state.enclosing, name);
+        if (upvalue != -1) {
+            return addUpvalue(state, upvalue, false);
+        }
+
+        return -1;
+    }
+
+    private void namedVariable(String name, Expr value) {
+        byte getOp, setOp;
+        int arg = resolveLocal(current, name);
+        if (arg != -1) {
+            getOp = OpCode.GET_LOCAL;
+            setOp = OpCode.SET_LOCAL;
+        } else if ((arg = resolveUpvalue(current, name)) != -1) {
+            getOp = OpCode.GET_UPVALUE;
+            setOp = OpCode.SET_UPVALUE;
+        } else {
+            arg = makeConstant(name);
+            if (value != null) compile(value);
+            emitOp(value != null ? OpCode.SET_GLOBAL : OpCode.GET_GLOBAL);
+            emitShort(arg);
+            return;
+        }
+
+        if (value != null) compile(value);
+        emitOp(value != null ? setOp : getOp);
+        emitByte(arg);
+    }
+
+    /**
+     * Declares a variable in the current scope. Locals are added before their initializer is compiled so that
+     * functions can refer to themselves.
+     */
+    private void declareVariable(String name) {
+        if (current.scopeDepth > 0) addLocal(name);
+    }
+
+    /**
+     * Stores the value on top of the stack into a variable declared with declareVariable
+     */
+    private void defineVariable(String name) {
+        // Locals are already in the right slot on the stack
+        if (current.scopeDepth > 0) return;
+        emitOp(OpCode.DEFINE_GLOBAL);
+        emitShort(makeConstant(name));
+    }
+
+    private void function(FunctionType type, String name, List<Token> params, List<Stmt> body) {
+        FunctionState state = new FunctionState(current, type, name);
+        current = state;
+        beginScope();
+
+        for (Token param : params) {
+            state.function.arity++;
+            addLocal(param.lexeme);
+        }
+        for (Stmt statement : body) {
+            compile(statement);
+        }
+        emitReturn();
+
+        current = state.enclosing;
+        emitOp(OpCode.CLOSURE);
+        emitShort(makeConstant(state.function));
+        for (Upvalue upvalue : state.upvalues) {
+            emitByte(upvalue.isLocal ? 1 : 0);
+            emitByte(upvalue.index);
+        }
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        compile(stmt.expression);
+        emitOp(OpCode.POP);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        compile(stmt.expresion);
+        emitOp(OpCode.PRINT);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        line = stmt.name.line;
+        declareVariable(stmt.name.lexeme);
+        if (stmt.initializer != null) {
+            compile(stmt.initializer);
+        } else {
+            emitConstant(UNASSIGNED);
+        }
+        line = stmt.name.line;
+        defineVariable(stmt.name.lexeme);
+        return null;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        beginScope();
+        for (Stmt statement : stmt.statements) {
+            compile(statement);
+        }
+        endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        line = stmt.name.line;
+        declareVariable(stmt.name.lexeme);
+        function(FunctionType.FUNCTION, stmt.name.lexeme, stmt.params, stmt.body);
+        defineVariable(stmt.name.lexeme);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        compile(stmt.condition);
+
+        int thenJump = emitJump(OpCode.JUMP_IF_FALSE);
+        emitOp(OpCode.POP);
+        compile(stmt.thenBranch);
+
+        int elseJump = emitJump(OpCode.JUMP);
+        patchJump(thenJump);
+        emitOp(OpCode.POP);
+        if (stmt.elseBranch != null) compile(stmt.elseBranch);
+        patchJump(elseJump);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        int loopStart = currentChunk().count;
+        compile(stmt.condition);
+
+        int exitJump = emitJump(OpCode.JUMP_IF_FALSE);
+        emitOp(OpCode.POP);
+
+        Loop loop = new Loop(current.loop, current.scopeDepth);
+        current.loop = loop;
+        compile(stmt.statement);
+        current.loop = loop.enclosing;
+        emitLoop(loopStart);
+
+        patchJump(exitJump);
+        emitOp(OpCode.POP);
+
+        // Breaks jump past the condition's pop since they leave the loop with it already popped
+        for (int breakJump : loop.breakJumps) {
+            patchJump(breakJump);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitBreakStmt(Stmt.Break stmt) {
+        line = stmt.keyword.line;
+        Loop loop = current.loop;
+
+        // Discard the locals of the scopes we are jumping out of, but keep them in the compiler since the code
+        // after the break still belongs to those scopes
+        List<Local> locals = current.locals;
+        for (int i = locals.size() - 1; i >= 0 && locals.get(i).depth > loop.scopeDepth; i--) {
+            emitOp(locals.get(i).isCaptured ? OpCode.CLOSE_UPVALUE : OpCode.POP);
+        }
+        loop.breakJumps.add(emitJump(OpCode.JUMP));
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        line = stmt.keyword.line;
+        if (stmt.value == null) {
+            emitReturn();
+        } else {
+            compile(stmt.value);
+            emitOp(OpCode.RETURN);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        line = stmt.name.line;
+        String name = stmt.name.lexeme;
+        declareVariable(name);
+        emitOp(OpCode.CLASS);
+        emitShort(makeConstant(name));
+        defineVariable(name);
+
+        if (stmt.superclass != null) {
+            compile(stmt.superclass);
+
+            // Methods capture the superclass through this local
+            beginScope();
+            addLocal("super");
+
+            namedVariable(name, null);
+            emitOp(OpCode.INHERIT);
+        }
+
+        namedVariable(name, null);
+        for (Stmt.Function method : stmt.methods) {
+            line = method.name.line;
+            FunctionType type = method.name.lexeme.equals("init") ? FunctionType.INITIALIZER : FunctionType.METHOD;
+            function(type, method.name.lexeme, method.params, method.body);
+            emitOp(OpCode.METHOD);
+            emitShort(makeConstant(method.name.lexeme));
+        }
+        for (Stmt.Function getter : stmt.getters) {
+            line = getter.name.line;
+            function(FunctionType.METHOD, getter.name.lexeme, getter.params, getter.body);
+            emitOp(OpCode.GETTER);
+            emitShort(makeConstant(getter.name.lexeme));
+        }
+        emitOp(OpCode.POP);
+
+        if (stmt.superclass != null) {
+            endScope();
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        line = expr.name.line;
+        namedVariable(expr.name.lexeme, expr.value);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        compile(expr.left);
+        compile(expr.right);
+
+        line = expr.operator.line;
+        switch (expr.operator.type) {
+            case GREATER -> emitOp(OpCode.GREATER);
+            case GREATER_EQUAL -> emitOp(OpCode.GREATER_EQUAL);
+            case LESS -> emitOp(OpCode.LESS);
+            case LESS_EQUAL -> emitOp(OpCode.LESS_EQUAL);
+            case BANG_EQUAL -> emitOp(OpCode.NOT_EQUAL);
+            case EQUAL_EQUAL -> emitOp(OpCode.EQUAL);
+            case MINUS -> emitOp(OpCode.SUBTRACT);
+            case PLUS -> emitOp(OpCode.ADD);
+            case STAR -> emitOp(OpCode.MULTIPLY);
+            case SLASH -> emitOp(OpCode.DIVIDE);
+            // Unreachable
+            default -> {
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        compile(expr.left);
+        line = expr.operator.line;
+
+        if (expr.operator.type == TokenType.AND) {
+            int endJump = emitJump(OpCode.JUMP_IF_FALSE);
+            emitOp(OpCode.POP);
+            compile(expr.right);
+            patchJump(endJump);
+        } else {
+            int elseJump = emitJump(OpCode.JUMP_IF_FALSE);
+            int endJump = emitJump(OpCode.JUMP);
+            patchJump(elseJump);
+            emitOp(OpCode.POP);
+            compile(expr.right);
+            patchJump(endJump);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        compile(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        compile(expr.callee);
+        for (Expr argument : expr.arguments) {
+            compile(argument);
+        }
+
+        line = expr.paren.line;
+        emitOp(OpCode.CALL);
+        emitByte(expr.arguments.size());
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value == null) {
+            emitOp(OpCode.NIL);
+        } else if (expr.value instanceof Boolean) {
+            emitOp((boolean) expr.value ? OpCode.TRUE : OpCode.FALSE);
+        } else {
+            emitConstant(expr.value);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        compile(expr.right);
+
+        line = expr.operator.line;
+        switch (expr.operator.type) {
+            case MINUS -> emitOp(OpCode.NEGATE);
+            case BANG -> emitOp(OpCode.NOT);
+            // Unreachable
+            default -> {
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        compile(expr.object);
+        compile(expr.value);
+
+        line = expr.name.line;
+        emitOp(OpCode.SET_PROPERTY);
+        emitShort(makeConstant(expr.name.lexeme));
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        line = expr.name.line;
+        namedVariable(expr.name.lexeme, null);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionExpr(Expr.Function expr) {
+        function(FunctionType.FUNCTION, null, expr.params, expr.body);
+        return null;
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        compile(expr.object);
+
+        line = expr.name.line;
+        emitOp(OpCode.GET_PROPERTY);
+        emitShort(makeConstant(expr.name.lexeme));
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        line = expr.keyword.line;
+        namedVariable("this", null);
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+        line = expr.keyword.line;
+        namedVariable("this", null);
+        namedVariable("super", null);
+        emitOp(OpCode.GET_SUPER);
+        emitShort(makeConstant(expr.method.lexeme));
+        return null;
+    }
+}
@@ -0,0 +1,70 @@
+package si.trplan.lox;
+
+/**
+ * A Lox string produced by concatenation that hasn't been turned into a String yet. Concatenations share one growing
+ * StringBuilder: appending to the newest string built in a buffer just appends to the buffer, so building a string
+ * in a loop takes linear time instead of copying everything built so far on every step. Older strings of the same
+ * buffer stay valid because the part of the buffer they cover never changes.
+ * <p>
+ * Scripts can't tell it apart from a String. Anything that looks at the characters (printing, equality, the string
+ * operators) goes through toString(), which flattens it once and keeps the result. Unlike String values these
+ * aren't interned, they are long and mostly built to be printed.
+ */
+final class ConcatString implements CharSequence {
+    // Shorter results stay plain Strings, copying those is cheaper than holding on to a buffer
+    private static final int MIN_LENGTH = 64;
+
+    private final StringBuilder buffer;
+    // This string is buffer[0, length)
+    private final int length;
+    private String flattened = null;
+
+    private ConcatString(StringBuilder buffer, int length) {
+        this.buffer = buffer;
+        this.length = length;
+    }
+
+    /**
+     * @param left  A String or ConcatString
+     * @param right A String or ConcatString
+     * @return left + right, as a String or ConcatString
+     */
+    static Object concat(Object left, Object right) {
+        if (left instanceof ConcatString string && string.length == string.buffer.length()) {
+            // Flatten first, right may be this very string
+            string.buffer.append(right.toString());
+            return new ConcatString(string.buffer, string.buffer.length());
+        }
+
+        String first = left.toString();
+        String second = right.toString();
+        int length = first.length() + second.length();
+        if (length < MIN_LENGTH) return (first + second).intern();
+
+        // Leave room for the appends that usually follow
+        StringBuilder buffer = new StringBuilder(length * 2).append(first).append(second);
+        return new ConcatString(buffer, length);
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index >= length) throw new IndexOutOfBoundsException(index);
+        return buffer.charAt(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return toString().subSequence(start, end);
+    }
+
+    @Override
+    public String toString() {
+        if (flattened == null) flattened = buffer.substring(0, length);
+        return flattened;
+    }
+}
@@ -1,29 +1,36 @@
 package si.trplan.lox;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
 public class Environment {
     final Environment enclosing;
-    private final Map<String, Object> values = new HashMap<>();
+    // Only the global environment is keyed by name, locals live in the slots the Resolver assigned them
+    private final Map<String, Object> values;
+    private Object[] slots;
+    private int count = 0;
     
     public static class Unassigned {}
     
     Environment() {
         enclosing = null;
+        values = new HashMap<>();
     }
     
     Environment(Environment enclosing) {
         this.enclosing = enclosing;
+        values = null;
+        slots = new Object[4];
     }
     
     Object get(Token name) {
-        if (values.containsKey(name.lexeme)) {
+        if (values != null && values.containsKey(name.lexeme)) {
             Object value = values.get(name.lexeme);
             if(value instanceof Unassigned) {
                 throw new RuntimeError(name, "Unassigned variable '" + name.lexeme + "'");
             }
-            return values.get(name.lexeme);
+            return value;
         }
         
         if (enclosing != null) return enclosing.get(name);
@@ -31,16 +38,16 @@ public class Environment {
         throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
     }
     
-    Object getAt(int distance, String name) {
-        return ancestor(distance).values.get(name);
+    Object getAt(int distance, int slot) {
+        return ancestor(distance).slots[slot];
     }
     
-    void assignAt(int distance, Token name, Object value) {
-        ancestor(distance).values.put(name.lexeme, value);
+    void assignAt(int distance, int slot, Object value) {
+        ancestor(distance).slots[slot] = value;
     }
     
     void assign(Token name, Object value) {
-        if(values.containsKey(name.lexeme)) {
+        if(values != null && values.containsKey(name.lexeme)) {
             values.put(name.lexeme, value);
             return;
         }
@@ -53,8 +60,20 @@ public class Environment {
         throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
     }
     
+    /**
+     * Defines a variable in this environment. Locals are defined in the same order the Resolver declared them,
+     * so the next free slot is always the one it assigned.
+     */
     void define(String name, Object value) {
-        values.put(name, value);
+        if (values != null) {
+            values.put(name, value);
+            return;
+        }
+        
+        if (count == slots.length) {
+            slots = Arrays.copyOf(slots, count * 2);
+        }
+        slots[count++] = value;
     }
     
     Environment ancestor(int distance) {
@@ -31,6 +31,8 @@ abstract class Expr {
 
  final Token name;
  final Expr value;
+ int depth = -1;
+ int slot = -1;
  }
  public static class Binary extends Expr {
  Binary(Expr left, Token operator, Expr right) {
@@ -47,6 +49,7 @@ abstract class Expr {
  final Expr left;
  final Token operator;
  final Expr right;
+ Specialization specialization = Specialization.UNINITIALIZED;
  }
  public static class Logical extends Expr {
  Logical(Expr left, Token operator, Expr right) {
@@ -133,6 +136,7 @@ abstract class Expr {
  final Expr object;
  final Token name;
  final Expr value;
+ PropertyCache cache = new PropertyCache();
  }
  public static class Variable extends Expr {
  Variable(Token name) {
@@ -145,6 +149,8 @@ abstract class Expr {
  }
 
  final Token name;
+ int depth = -1;
+ int slot = -1;
  }
  public static class Function extends Expr {
  Function(List<Token> params, List<Stmt> body) {
@@ -173,6 +179,7 @@ abstract class Expr {
 
  final Expr object;
  final Token name;
+ PropertyCache cache = new PropertyCache();
  }
  public static class This extends Expr {
  This(Token keyword) {
@@ -185,6 +192,8 @@ abstract class Expr {
  }
 
  final Token keyword;
+ int depth = -1;
+ int slot = -1;
  }
  public static class Super extends Expr {
  Super(Token keyword, Token method) {
@@ -199,6 +208,8 @@ abstract class Expr {
 
  final Token keyword;
  final Token method;
+ int depth = -1;
+ int thisDepth = -1;
  }
 
  abstract <R> R accept(Visitor<R> visitor);
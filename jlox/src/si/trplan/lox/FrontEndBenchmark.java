@@ -0,0 +1,315 @@
+package si.trplan.lox;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Measures the front end phases on the given scripts, typically ones written by si.trplan.tool.GenerateProgram at
+ * growing sizes. For each phase it prints the time, the throughput and the bytes allocated per source byte, so
+ * anything that doesn't scale linearly shows up as a number that grows with the input. Every phase runs the given
+ * number of times and the last (warmed up) run is reported.
+ * <p>
+ * Usage: java si.trplan.lox.FrontEndBenchmark [-n iterations] script...
+ */
+public class FrontEndBenchmark {
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    private final ByteBuffer source;
+
+    private FrontEndBenchmark(ByteBuffer source) {
+        this.source = source;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int iterations = 3;
+        int first = 0;
+        if (args.length >= 2 && args[0].equals("-n")) {
+            iterations = Integer.parseInt(args[1]);
+            first = 2;
+        }
+        if (first == args.length) {
+            System.err.println("Usage: FrontEndBenchmark [-n iterations] script...");
+            System.exit(64);
+        }
+
+        for (int i = first; i < args.length; i++) {
+            ByteBuffer source;
+            try (FileChannel channel = FileChannel.open(Paths.get(args[i]), StandardOpenOption.READ)) {
+                source = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            System.out.printf("%s (%.1f MB)%n", args[i], source.limit() / (1024.0 * 1024.0));
+            new FrontEndBenchmark(source).run(iterations);
+        }
+    }
+
+    private void run(int iterations) {
+        measure("scan", "tokens", iterations, () -> {
+            Scanner scanner = new Scanner(source);
+            long count = 0;
+            while (scanner.nextToken().type != TokenType.EOF) count++;
+            return count;
+        });
+        measure("scan to buffer", "tokens", iterations, () -> (long) new Scanner(source).scanBuffer().size());
+
+        List<Stmt> statements = null;
+        long nodes = 0;
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            long allocated = allocatedBytes();
+            statements = new Parser(new Scanner(source)).parse();
+            long nanos = System.nanoTime() - start;
+            allocated = allocatedBytes() - allocated;
+            // Counted outside of the measurement
+            nodes = countNodes(statements);
+            if (i == iterations - 1) report("scan + parse", "nodes", nanos, allocated, nodes);
+        }
+        // Most nodes are in the skipped bodies, so this goes by tokens
+        measure("pre-parse", "tokens", iterations, () -> {
+            TokenBuffer buffer = new Scanner(source).scanBuffer();
+            new Parser(buffer).parse();
+            return (long) buffer.size();
+        });
+
+        if (Lox.hadError) {
+            System.out.println("  the script has syntax errors, not resolving");
+            return;
+        }
+        List<Stmt> parsed = statements;
+        long parsedNodes = nodes;
+        measure("resolve", "nodes", iterations, () -> {
+            Resolver resolver = new Resolver();
+            resolver.resolve(parsed);
+            resolver.reportUnused();
+            return parsedNodes;
+        });
+    }
+
+    /**
+     * @param phaseRun Returns how many units (tokens or nodes) it went through
+     */
+    private void measure(String phase, String unit, int iterations, Supplier<Long> phaseRun) {
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            long allocated = allocatedBytes();
+            long items = phaseRun.get();
+            long nanos = System.nanoTime() - start;
+            allocated = allocatedBytes() - allocated;
+            if (i == iterations - 1) report(phase, unit, nanos, allocated, items);
+        }
+    }
+
+    private void report(String phase, String unit, long nanos, long allocated, long items) {
+        double seconds = nanos / 1e9;
+        int bytes = source.limit();
+        System.out.printf("  %-15s %9.1f ms %8.1f MB/s %12.0f %s/s %8.1f ns/byte %8.1f allocated bytes/byte%n",
+                phase, nanos / 1e6, bytes / (1024.0 * 1024.0) / seconds, items / seconds, unit,
+                (double) nanos / bytes, allocatedBytes() < 0 ? Double.NaN : (double) allocated / bytes);
+    }
+
+    /**
+     * @return Bytes allocated by this thread so far, -1 if the JVM can't tell
+     */
+    private static long allocatedBytes() {
+        if (threads instanceof com.sun.management.ThreadMXBean allocations) {
+            return allocations.getCurrentThreadAllocatedBytes();
+        }
+        return -1;
+    }
+
+    private long countNodes(List<Stmt> statements) {
+        NodeCounter counter = new NodeCounter();
+        counter.count(statements);
+        return counter.count;
+    }
+
+    /**
+     * Counts the nodes of a tree
+     */
+    private static class NodeCounter implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+        long count = 0;
+
+        void count(List<? extends Stmt> statements) {
+            for (Stmt statement : statements) count(statement);
+        }
+
+        void count(Stmt stmt) {
+            if (stmt != null) stmt.accept(this);
+        }
+
+        void count(Expr expr) {
+            if (expr != null) expr.accept(this);
+        }
+
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr) {
+            count++;
+            count(expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            count++;
+            count(expr.left);
+            count(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitLogicalExpr(Expr.Logical expr) {
+            count++;
+            count(expr.left);
+            count(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            count++;
+            count(expr.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitCallExpr(Expr.Call expr) {
+            count++;
+            count(expr.callee);
+            for (Expr argument : expr.arguments) count(argument);
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr) {
+            count++;
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            count++;
+            count(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitSetExpr(Expr.Set expr) {
+            count++;
+            count(expr.object);
+            count(expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitVariableExpr(Expr.Variable expr) {
+            count++;
+            return null;
+        }
+
+        @Override
+        public Void visitFunctionExpr(Expr.Function expr) {
+            count++;
+            count(expr.body);
+            return null;
+        }
+
+        @Override
+        public Void visitGetExpr(Expr.Get expr) {
+            count++;
+            count(expr.object);
+            return null;
+        }
+
+        @Override
+        public Void visitThisExpr(Expr.This expr) {
+            count++;
+            return null;
+        }
+
+        @Override
+        public Void visitSuperExpr(Expr.Super expr) {
+            count++;
+            return null;
+        }
+
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt) {
+            count++;
+            count(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitPrintStmt(Stmt.Print stmt) {
+            count++;
+            count(stmt.expresion);
+            return null;
+        }
+
+        @Override
+        public Void visitVarStmt(Stmt.Var stmt) {
+            count++;
+            count(stmt.initializer);
+            return null;
+        }
+
+        @Override
+        public Void visitBlockStmt(Stmt.Block stmt) {
+            count++;
+            count(stmt.statements);
+            return null;
+        }
+
+        @Override
+        public Void visitFunctionStmt(Stmt.Function stmt) {
+            count++;
+            count(stmt.body);
+            return null;
+        }
+
+        @Override
+        public Void visitIfStmt(Stmt.If stmt) {
+            count++;
+            count(stmt.condition);
+            count(stmt.thenBranch);
+            count(stmt.elseBranch);
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStmt(Stmt.While stmt) {
+            count++;
+            count(stmt.condition);
+            count(stmt.statement);
+            return null;
+        }
+
+        @Override
+        public Void visitBreakStmt(Stmt.Break stmt) {
+            count++;
+            return null;
+        }
+
+        @Override
+        public Void visitReturnStmt(Stmt.Return stmt) {
+            count++;
+            count(stmt.value);
+            return null;
+        }
+
+        @Override
+        public Void visitClassStmt(Stmt.Class stmt) {
+            count++;
+            count(stmt.superclass);
+            count(stmt.methods);
+            count(stmt.getters);
+            return null;
+        }
+    }
+}
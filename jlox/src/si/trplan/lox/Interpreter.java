@@ -5,31 +5,45 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
+public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Interpreter.Completion> {
     final Environment globals = new Environment();
     private Environment environment = globals;
-    private final Map<Expr, Integer> locals = new HashMap<>();
+    // Where print statements go
+    private final Output output;
 
-    private static class BreakException extends RuntimeException {
+    // Value of the last executed return statement, valid while a RETURN completion propagates to the call
+    private Object returnValue = null;
+
+    /**
+     * How a statement finished. Break and return propagate as a completion out of the statements they end
+     * instead of being thrown, so they cost neither an allocation nor stack unwinding.
+     */
+    enum Completion {
+        NORMAL,
+        BREAK,
+        RETURN
     }
 
-    Interpreter() {
-        globals.define("clock", new LoxCallable() {
-            @Override
-            public int arity() {
-                return 0;
-            }
+    /**
+     * Thrown by evaluateDouble() when an expression produced something other than a number. Nodes only ask for
+     * doubles after they have seen numbers, so this is rare.
+     */
+    @SuppressWarnings("serial")
+    private static class UnexpectedResult extends RuntimeException {
+        final Object value;
 
-            @Override
-            public Object call(Interpreter interpreter, List<Object> arguments) {
-                return (double) System.currentTimeMillis() / 1000.0;
-            }
+        UnexpectedResult(Object value) {
+            super(null, null, false, false);
+            this.value = value;
+        }
+    }
 
-            @Override
-            public String toString() {
-                return "<native fn>";
-            }
-        });
+    Interpreter(Output output) {
+        this.output = output;
+
+        for (Natives.Native fn : Natives.ALL) {
+            globals.define(fn.name(), new NativeFunction(fn.arity(), fn.body()));
+        }
     }
 
     void interpret(List<Stmt> statements) {
@@ -39,6 +53,8 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             }
         } catch (RuntimeError error) {
             Lox.runtimeError(error);
+        } catch (LazyBody.CompileError error) {
+            // Already reported, and like any other compile error it ends the program
         }
     }
 
@@ -49,91 +65,99 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         } catch (RuntimeError error) {
             Lox.runtimeError(error);
             return null;
+        } catch (LazyBody.CompileError error) {
+            return null;
         }
     }
 
-    private void execute(Stmt stmt) {
-        stmt.accept(this);
+    private Completion execute(Stmt stmt) {
+        return stmt.accept(this);
     }
     
-    void resolve(Expr expr, int depth) {
-        locals.put(expr, depth); 
-    }
-
-    void executeBlock(List<Stmt> statements, Environment environment) {
+    private Completion executeBlock(List<Stmt> statements, Environment environment) {
         Environment previous = this.environment;
         try {
             this.environment = environment;
 
             for (Stmt statement : statements) {
-                execute(statement);
+                Completion completion = execute(statement);
+                if (completion != Completion.NORMAL) return completion;
             }
         } catch (RuntimeError error) {
             Lox.runtimeError(error);
         } finally {
             this.environment = previous;
         }
+        return Completion.NORMAL;
+    }
+
+    /**
+     * Executes a function's body in the given environment
+     *
+     * @return The returned value or null if the body didn't return one
+     */
+    Object executeFunctionBody(List<Stmt> body, Environment environment) {
+        if (executeBlock(body, environment) != Completion.RETURN) return null;
+        Object value = returnValue;
+        returnValue = null;
+        return value;
     }
 
     @Override
-    public Void visitBlockStmt(Stmt.Block stmt) {
-        executeBlock(stmt.statements, new Environment(environment));
-        return null;
+    public Completion visitBlockStmt(Stmt.Block stmt) {
+        return executeBlock(stmt.statements, new Environment(environment));
     }
 
     @Override
-    public Void visitExpressionStmt(Stmt.Expression stmt) {
+    public Completion visitExpressionStmt(Stmt.Expression stmt) {
         evaluate(stmt.expression);
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitPrintStmt(Stmt.Print stmt) {
+    public Completion visitPrintStmt(Stmt.Print stmt) {
         Object value = evaluate(stmt.expresion);
-        System.out.println(stringify(value));
-        return null;
+        output.println(value);
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitIfStmt(Stmt.If stmt) {
+    public Completion visitIfStmt(Stmt.If stmt) {
         if (isTruthy(evaluate(stmt.condition))) {
-            execute(stmt.thenBranch);
+            return execute(stmt.thenBranch);
         } else if (stmt.elseBranch != null) {
-            execute(stmt.elseBranch);
+            return execute(stmt.elseBranch);
         }
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitBreakStmt(Stmt.Break stmt) {
-        throw new BreakException();
+    public Completion visitBreakStmt(Stmt.Break stmt) {
+        return Completion.BREAK;
     }
     
     @Override
-    public Void visitReturnStmt(Stmt.Return stmt) {
+    public Completion visitReturnStmt(Stmt.Return stmt) {
         Object value = null;
         if (stmt.value != null) value = evaluate(stmt.value);
-        throw new Return(value);
+        returnValue = value;
+        return Completion.RETURN;
     }
 
     @Override
-    public Void visitWhileStmt(Stmt.While stmt) {
+    public Completion visitWhileStmt(Stmt.While stmt) {
         while (isTruthy(evaluate(stmt.condition))) {
-            try {
-                execute(stmt.statement);
-            } catch (BreakException e) {
-                break;
-            }
+            Completion completion = execute(stmt.statement);
+            if (completion == Completion.BREAK) break;
+            if (completion == Completion.RETURN) return completion;
         }
-        return null;
+        return Completion.NORMAL;
     }
     
     @Override
-    public Void visitClassStmt(Stmt.Class stmt) {
+    public Completion visitClassStmt(Stmt.Class stmt) {
         Object superclass = null;
         
-        environment.define(stmt.name.lexeme, null);
-        
         if (stmt.superclass != null) {
             superclass = evaluate(stmt.superclass);
             if (!(superclass instanceof LoxClass)) {
@@ -143,7 +167,11 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             environment.define("super", superclass);
         }
         
+        // Copy the inherited methods down so that finding a method never has to walk the superclass chain
         Map<String, LoxFunction> methods = new HashMap<>();
+        if (superclass != null) {
+            methods.putAll(((LoxClass)superclass).methods);
+        }
         Map<String, LoxFunction> getters = new HashMap<>();
         for(Stmt.Function method : stmt.methods) {
             LoxFunction function = new LoxFunction(method, environment, method.name.lexeme.equals("init"));
@@ -155,43 +183,45 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             getters.put(getter.name.lexeme, function);
         }
         
-        LoxClass klass = new LoxClass(stmt.name.lexeme, (LoxClass)superclass, methods, getters);
+        LoxClass klass = new LoxClass(stmt.name.lexeme, (LoxClass)superclass, Map.copyOf(methods),
+                Map.copyOf(getters));
         
         if (superclass != null) {
             environment = environment.enclosing;
         }
         
-        environment.assign(stmt.name, klass);
-        return null;
+        // Nothing else is defined while the class is being built, so defining it here still lands in the slot the
+        // Resolver assigned to it
+        environment.define(stmt.name.lexeme, klass);
+        return Completion.NORMAL;
     }
     
     @Override
-    public Void visitFunctionStmt(Stmt.Function stmt) {
+    public Completion visitFunctionStmt(Stmt.Function stmt) {
         LoxFunction function = new LoxFunction(stmt, environment, false);
         environment.define(stmt.name.lexeme, function);
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitVarStmt(Stmt.Var stmt) {
+    public Completion visitVarStmt(Stmt.Var stmt) {
         Object value = new Environment.Unassigned();
         if (stmt.initializer != null) {
             value = evaluate(stmt.initializer);
         }
 
         environment.define(stmt.name.lexeme, value);
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
     public Object visitAssignExpr(Expr.Assign expr) {
         Object value = evaluate(expr.value);
         
-        Integer distance = locals.get(expr);
-        if (distance != null) {
-            environment.assignAt(distance, expr.name, value);
+        if (expr.depth != -1) {
+            environment.assignAt(expr.depth, expr.slot, value);
         } else {
-            environment.assign(expr.name, value);
+            globals.assign(expr.name, value);
         }
         
         return value;
@@ -210,20 +240,37 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     /**
      * Returns false if object is null or false, true otherwise
      */
-    private boolean isTruthy(Object object) {
+    static boolean isTruthy(Object object) {
         if (object == null) return false;
         if (object instanceof Boolean) return (boolean) object;
         return true;
     }
 
-    private boolean isEqual(Object a, Object b) {
+    /**
+     * @return Whether the value is a Lox string, which is a String or a ConcatString that wasn't flattened yet
+     */
+    static boolean isString(Object object) {
+        return object instanceof String || object instanceof ConcatString;
+    }
+
+    /**
+     * String values are interned where they are made (literals by the Scanner, short concatenations by
+     * ConcatString.concat), like clox does with its string table, so equal strings are mostly the same object and
+     * the identity check settles it. Comparing the characters stays the fallback for strings that weren't.
+     */
+    static boolean isEqual(Object a, Object b) {
+        if (a == b) return true;
+        if (a instanceof String && b instanceof String) return a.equals(b);
+        if (a instanceof ConcatString || b instanceof ConcatString) {
+            return isString(a) && isString(b) && a.toString().equals(b.toString());
+        }
         if (a == null && b == null) return true;
         // This is to avoid a NullPointerException
         if (a == null) return false;
         return a.equals(b);
     }
 
-    private String stringify(Object object) {
+    static String stringify(Object object) {
         if (object == null) return "nil";
 
         if (object instanceof Double) {
@@ -243,25 +290,70 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitCallExpr(Expr.Call expr) {
-        Object callee = evaluate(expr.callee);
+        // Method calls invoke the method directly instead of creating a bound method first
+        if (expr.callee instanceof Expr.Get get) {
+            return invokeProperty(expr, get);
+        }
+        if (expr.callee instanceof Expr.Super superExpr) {
+            LoxInstance object = (LoxInstance)environment.getAt(superExpr.thisDepth, 0);
+            return invokeMethod(expr, superMethod(superExpr), object);
+        }
+
+        return callValue(expr, evaluate(expr.callee));
+    }
 
+    private List<Object> evaluateArguments(Expr.Call expr) {
         List<Object> arguments = new ArrayList<>();
         for (Expr argument : expr.arguments) {
             arguments.add(evaluate(argument));
         }
+        return arguments;
+    }
+
+    private Object invokeProperty(Expr.Call expr, Expr.Get get) {
+        Object object = evaluate(get.object);
+        if(!(object instanceof LoxInstance instance)) {
+            throw new RuntimeError(get.name, "Property access is allowed only on class instances.");
+        }
+
+        PropertyCache cache = get.cache;
+        int entry = cache.lookup(instance.shape);
+        if (entry != -1 && cache.slots[entry] == PropertyCache.METHOD) {
+            return invokeMethod(expr, cache.functions[entry], instance);
+        }
+
+        // Fields and getters hold the callee, so call whatever they produce
+        return callValue(expr, getProperty(get, instance));
+    }
+
+    private Object invokeMethod(Expr.Call expr, LoxFunction method, LoxInstance receiver) {
+        List<Object> arguments = evaluateArguments(expr);
+        checkArity(expr, method, arguments);
+        return method.invoke(this, receiver, arguments);
+    }
+
+    private Object callValue(Expr.Call expr, Object callee) {
+        List<Object> arguments = evaluateArguments(expr);
 
         if (!(callee instanceof LoxCallable)) {
             throw new RuntimeError(expr.paren, "Can only call functions and classes.");
         }
 
         LoxCallable function = (LoxCallable) callee;
+        checkArity(expr, function, arguments);
+        try {
+            return function.call(this, arguments);
+        } catch (NativeError error) {
+            throw new RuntimeError(expr.paren, error.getMessage());
+        }
+    }
 
+    private void checkArity(Expr.Call expr, LoxCallable function, List<Object> arguments) {
         if (arguments.size() != function.arity()) {
             throw new RuntimeError(expr.paren, String.format("Expecting %d arguments but got %d arguments.",
                     function.arity(), arguments.size()
             ));
         }
-        return function.call(this, arguments);
     }
     
     @Override
@@ -272,10 +364,24 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     @Override
     public Object visitGetExpr(Expr.Get expr) {
         Object object = evaluate(expr.object);
-        if(!(object instanceof LoxInstance)) {
+        if(!(object instanceof LoxInstance instance)) {
             throw new RuntimeError(expr.name, "Property access is allowed only on class instances.");
         }
-        return ((LoxInstance)object).get(expr.name, this);
+        return getProperty(expr, instance);
+    }
+
+    private Object getProperty(Expr.Get expr, LoxInstance instance) {
+        PropertyCache cache = expr.cache;
+        int entry = cache.lookup(instance.shape);
+        if (entry == -1) {
+            return instance.get(expr.name, this, cache);
+        }
+
+        return switch (cache.slots[entry]) {
+            case PropertyCache.METHOD -> cache.functions[entry].bind(instance);
+            case PropertyCache.GETTER -> cache.functions[entry].invoke(this, instance, new ArrayList<>());
+            default -> instance.getField(cache.slots[entry]);
+        };
     }
     
     @Override
@@ -285,40 +391,53 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             throw new RuntimeError(expr.name, "Property setting is allowed only on class instances.");
         }
         Object value = evaluate(expr.value);
-        ((LoxInstance)object).set(expr.name, value);
+        LoxInstance instance = (LoxInstance)object;
+
+        PropertyCache cache = expr.cache;
+        int entry = cache.lookup(instance.shape);
+        if (entry == -1) {
+            instance.set(expr.name, value, cache);
+        } else {
+            instance.shape = cache.transitions[entry];
+            instance.setField(cache.slots[entry], value);
+        }
         return value;
     }
     
     @Override
     public Object visitSuperExpr(Expr.Super expr) {
-        int distance = locals.get(expr);
-        LoxClass superclass = (LoxClass)environment.getAt(distance, "super");
-        // This is always inside our environment where we enclose super
-        // We must bind our current class, not the superclass
-        LoxInstance object = (LoxInstance)environment.getAt(distance -1, "this");
+        // We must bind our current instance, not the superclass
+        LoxInstance object = (LoxInstance)environment.getAt(expr.thisDepth, 0);
+        return superMethod(expr).bind(object);
+    }
+
+    private LoxFunction superMethod(Expr.Super expr) {
+        // "super" is the only variable in its environment and "this" is always in a method's first slot
+        LoxClass superclass = (LoxClass)environment.getAt(expr.depth, 0);
         LoxFunction method = superclass.findMethod(expr.method.lexeme);
         
         if (method == null) {
             throw new RuntimeError(expr.method, "Undefined property '" + expr.method.lexeme + "'.");
         }
-        
-        return method.bind(object);
+        return method;
     }
     
     @Override
     public Object visitThisExpr(Expr.This expr) {
-        return lookUpVariable(expr.keyword, expr);
+        return lookUpVariable(expr.keyword, expr.depth, expr.slot);
     }
 
     @Override
     public Object visitVariableExpr(Expr.Variable expr) {
-        return lookUpVariable(expr.name, expr);
+        return lookUpVariable(expr.name, expr.depth, expr.slot);
     }
     
-    private Object lookUpVariable(Token name, Expr expr) {
-        Integer distance = locals.get(expr);
-        if(distance != null) {
-            return environment.getAt(distance, name.lexeme); 
+    /**
+     * @param depth Number of environments up as resolved by the Resolver, -1 for globals
+     */
+    private Object lookUpVariable(Token name, int depth, int slot) {
+        if(depth != -1) {
+            return environment.getAt(depth, slot);
         } else {
             return globals.get(name);
         }
@@ -331,15 +450,9 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitUnaryExpr(Expr.Unary expr) {
-
-        Object right = evaluate(expr.right);
-
         return switch (expr.operator.type) {
-            case MINUS -> {
-                checkNumberOperand(expr.operator, right);
-                yield -(double) right;
-            }
-            case BANG -> !isTruthy(right);
+            case MINUS -> -unaryOperand(expr);
+            case BANG -> !isTruthy(evaluate(expr.right));
             // Unreachable
             default -> null;
         };
@@ -352,9 +465,131 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitBinaryExpr(Expr.Binary expr) {
+        if (expr.specialization == Specialization.NUMBERS) {
+            // Keep the operands unboxed, only the result of this node gets boxed
+            double left;
+            try {
+                left = evaluateDouble(expr.left);
+            } catch (UnexpectedResult result) {
+                expr.specialization = Specialization.GENERIC;
+                return binaryGeneric(expr, result.value, evaluate(expr.right));
+            }
+            try {
+                return binaryNumbers(expr.operator, left, evaluateDouble(expr.right));
+            } catch (UnexpectedResult result) {
+                expr.specialization = Specialization.GENERIC;
+                return binaryGeneric(expr, left, result.value);
+            }
+        }
+
         Object left = evaluate(expr.left);
         Object right = evaluate(expr.right);
 
+        // Take the fast path for the operand types this node has seen so far
+        switch (expr.specialization) {
+            case STRINGS -> {
+                if (isString(left) && isString(right)) {
+                    return binaryStrings(expr, left, right);
+                }
+                expr.specialization = Specialization.GENERIC;
+            }
+            case UNINITIALIZED -> expr.specialization = Specialization.of(left, right);
+            default -> {
+            }
+        }
+
+        return binaryGeneric(expr, left, right);
+    }
+
+    private Object binaryNumbers(Token operator, double left, double right) {
+        return switch (operator.type) {
+            case GREATER -> left > right;
+            case GREATER_EQUAL -> left >= right;
+            case LESS -> left < right;
+            case LESS_EQUAL -> left <= right;
+            // Same as Double.equals() so both paths agree on NaN and -0
+            case BANG_EQUAL -> Double.compare(left, right) != 0;
+            case EQUAL_EQUAL -> Double.compare(left, right) == 0;
+            default -> arithmetic(operator, left, right);
+        };
+    }
+
+    private double arithmetic(Token operator, double left, double right) {
+        return switch (operator.type) {
+            case MINUS -> left - right;
+            case PLUS -> left + right;
+            case STAR -> left * right;
+            case SLASH -> {
+                if (right == 0.0) {
+                    throw new RuntimeError(operator, "Division by zero.");
+                }
+                yield left / right;
+            }
+            // Unreachable
+            default -> throw new IllegalStateException("Not an arithmetic operator: " + operator.type);
+        };
+    }
+
+    private static boolean isArithmetic(TokenType type) {
+        return type == TokenType.MINUS || type == TokenType.PLUS || type == TokenType.STAR || type == TokenType.SLASH;
+    }
+
+    /**
+     * Evaluates an expression that is expected to produce a number. Arithmetic on numbers and negation are
+     * computed on primitive doubles all the way down, so nested arithmetic doesn't box its intermediate results.
+     *
+     * @throws UnexpectedResult If the expression didn't produce a number after all
+     */
+    private double evaluateDouble(Expr expr) {
+        if (expr instanceof Expr.Grouping grouping) {
+            return evaluateDouble(grouping.expression);
+        }
+
+        if (expr instanceof Expr.Binary binary && binary.specialization == Specialization.NUMBERS &&
+                isArithmetic(binary.operator.type)) {
+            double left;
+            try {
+                left = evaluateDouble(binary.left);
+            } catch (UnexpectedResult result) {
+                binary.specialization = Specialization.GENERIC;
+                throw new UnexpectedResult(binaryGeneric(binary, result.value, evaluate(binary.right)));
+            }
+            try {
+                return arithmetic(binary.operator, left, evaluateDouble(binary.right));
+            } catch (UnexpectedResult result) {
+                binary.specialization = Specialization.GENERIC;
+                throw new UnexpectedResult(binaryGeneric(binary, left, result.value));
+            }
+        }
+
+        if (expr instanceof Expr.Unary unary && unary.operator.type == TokenType.MINUS) {
+            return -unaryOperand(unary);
+        }
+
+        Object value = evaluate(expr);
+        if (value instanceof Double) return (double) value;
+        throw new UnexpectedResult(value);
+    }
+
+    private double unaryOperand(Expr.Unary expr) {
+        try {
+            return evaluateDouble(expr.right);
+        } catch (UnexpectedResult result) {
+            checkNumberOperand(expr.operator, result.value);
+            return (double) result.value;
+        }
+    }
+
+    private Object binaryStrings(Expr.Binary expr, Object left, Object right) {
+        return switch (expr.operator.type) {
+            case PLUS -> ConcatString.concat(left, right);
+            case BANG_EQUAL -> !isEqual(left, right);
+            case EQUAL_EQUAL -> isEqual(left, right);
+            default -> binaryGeneric(expr, left, right);
+        };
+    }
+
+    private Object binaryGeneric(Expr.Binary expr, Object left, Object right) {
         return switch (expr.operator.type) {
             case GREATER -> {
                 checkNumberOperands(expr.operator, left, right);
@@ -382,8 +617,8 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
                 if (left instanceof Double && right instanceof Double) {
                     yield (double) left + (double) right;
                 }
-                if (left instanceof String && right instanceof String) {
-                    yield (String) left + (String) right;
+                if (isString(left) && isString(right)) {
+                    yield ConcatString.concat(left, right);
                 }
                 throw new RuntimeError(expr.operator, "Operand must be either two numbers or two strings.");
             }
@@ -0,0 +1,72 @@
+package si.trplan.lox;
+
+import java.util.AbstractList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Body of a function that was only pre-parsed: the Parser checked that its braces balance and remembered where it
+ * starts. The first time anything reads it (for most functions their first call, for many never) it is parsed,
+ * resolved in the surroundings the Resolver saw and optimized. Errors in it are only reported then, and stop the
+ * program just like they would have before it started.
+ */
+class LazyBody extends AbstractList<Stmt> {
+    /**
+     * Thrown when the body turns out to have errors, which are reported already. Not a RuntimeError, so that nothing
+     * in the Interpreter catches it and carries on: it ends the whole program.
+     */
+    @SuppressWarnings("serial")
+    static class CompileError extends RuntimeException {
+        CompileError() {
+            super(null, null, false, false);
+        }
+    }
+
+    private final TokenBuffer tokens;
+    // Index of the first token after the opening brace
+    private final int start;
+    // Set by the Resolver once it reaches the declaration
+    private Consumer<List<Stmt>> resolver = null;
+    private List<Stmt> statements = null;
+    private boolean failed = false;
+
+    LazyBody(TokenBuffer tokens, int start) {
+        this.tokens = tokens;
+        this.start = start;
+    }
+
+    boolean isParsed() {
+        return statements != null;
+    }
+
+    void resolveWith(Consumer<List<Stmt>> resolver) {
+        this.resolver = resolver;
+    }
+
+    @Override
+    public Stmt get(int index) {
+        return statements().get(index);
+    }
+
+    @Override
+    public int size() {
+        return statements().size();
+    }
+
+    private List<Stmt> statements() {
+        if (statements != null) return statements;
+        if (failed) throw new CompileError();
+
+        // Only count the errors in this body, the rest of the program already ran into none
+        boolean hadError = Lox.hadError;
+        Lox.hadError = false;
+        List<Stmt> parsed = new Parser(tokens.cursor(start)).parseBody();
+        if (!Lox.hadError && resolver != null) resolver.accept(parsed);
+        failed = Lox.hadError;
+        Lox.hadError = hadError || failed;
+
+        if (failed) throw new CompileError();
+        statements = new Optimizer().optimizeBody(parsed);
+        return statements;
+    }
+}
@@ -3,30 +3,93 @@ package si.trplan.lox;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.nio.charset.Charset;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 public class Lox {
-    private static final Interpreter interpreter = new Interpreter();
+    // Buffered stdout unless --output names a file, flushed before anything else is written and on exit
+    private static Output output;
+    // Only the engine that runs the program is created, the VM preallocates its whole stack
+    private static Interpreter interpreter;
+    private static VM vm;
+    // Shared by all REPL lines so a name typed twice is interned once
+    private static final SymbolTable replSymbols = new SymbolTable();
+    private static final Optimizer optimizer = new Optimizer();
+    // Run programs on the bytecode VM instead of the tree-walking interpreter
+    private static boolean useVm = false;
+    // Report locals that are never used, turned off with --allow-unused
+    private static boolean checkUnused = true;
+    // Only pre-parse top-level function bodies and parse them on first use, set with --lazy
+    private static boolean lazyFunctions = false;
+    // Resolved trees of scripts that were run before, null unless turned on with --cache or JLOX_CACHE_DIR
+    private static AstCache cache = null;
     static boolean hadError = false;
     static boolean hadRuntimeError = false;
 
     public static void main(String[] args) throws IOException {
-        if (args.length > 1) {
-            System.out.println("Usage: jlox [script]");
-            System.exit(64);
-        } else if (args.length == 1) {
-            runFile(args[0]);
+        List<String> arguments = new ArrayList<>(Arrays.asList(args));
+        useVm = arguments.remove("--vm");
+        checkUnused = !arguments.remove("--allow-unused");
+        // The VM compiles every function upfront anyway
+        lazyFunctions = arguments.remove("--lazy") && !useVm;
+        int outputFlag = arguments.indexOf("--output");
+        if (outputFlag != -1 && outputFlag + 1 < arguments.size()) {
+            output = new Output(FileChannel.open(Paths.get(arguments.get(outputFlag + 1)), StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING));
+            arguments.subList(outputFlag, outputFlag + 2).clear();
+        } else {
+            output = Output.stdout();
+        }
+        if (useVm) {
+            vm = new VM(output);
         } else {
-            runPrompt();
+            interpreter = new Interpreter(output);
+        }
+        // Caching is opt-in, either with --cache or by naming a directory for it. --no-cache overrides both.
+        String directory = System.getenv("JLOX_CACHE_DIR");
+        boolean useCache = arguments.remove("--cache") || directory != null;
+        if (!arguments.remove("--no-cache") && useCache) {
+            cache = new AstCache(directory != null ? Paths.get(directory) :
+                    Paths.get(System.getProperty("user.home"), ".cache", "jlox"));
+        }
+
+        if (arguments.size() > 1 || arguments.contains("--output")) {
+            System.out.println("Usage: jlox [--vm] [--cache | --no-cache] [--allow-unused] [--lazy] [--output file] " +
+                    "[script]");
+            System.exit(64);
+        }
+        try {
+            if (arguments.size() == 1) {
+                runFile(arguments.getFirst());
+            } else {
+                runPrompt();
+            }
+        } finally {
+            output.flush();
         }
     }
 
     private static void runFile(String path) throws IOException {
-        byte[] bytes = Files.readAllBytes(Paths.get(path));
-        run(new String(bytes, Charset.defaultCharset()));
+        // Map the script instead of reading it, the scanner works on the UTF-8 bytes directly. Pipes and other
+        // special files have no size to map, those are read.
+        Path file = Paths.get(path);
+        ByteBuffer source;
+        if (Files.isRegularFile(file)) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                source = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+        } else {
+            source = ByteBuffer.wrap(Files.readAllBytes(file));
+        }
+        run(source);
+        output.flush();
 
         // let the user know there was an error by exiting the program with a return code.
         if (hadError) System.exit(65);
@@ -36,48 +99,84 @@ public class Lox {
     private static void runPrompt() throws IOException {
         InputStreamReader input = new InputStreamReader(System.in);
         BufferedReader reader = new BufferedReader(input);
+        // Resolves each entry as it comes in, everything typed here is at the top level of the same program
+        Resolver resolver = new Resolver(checkUnused);
 
         for (; ; ) {
             hadError = false;
 
+            output.flush();
             System.out.print("> ");
-            Scanner scanner = new Scanner(reader.readLine());
-            List<Token> tokens = scanner.scanTokens();
+            String line = reader.readLine();
+            if (line == null) break;
 
-            Parser parser = new Parser(tokens);
+            Scanner scanner = new Scanner(line, replSymbols);
+            Parser parser = new Parser(scanner);
             Object syntax = parser.parseRepl();
 
             // Ignore it if there was a syntax error.
             if (hadError) continue;
 
-            if (syntax instanceof List) {
-                interpreter.interpret((List<Stmt>)syntax);
-            } else if (syntax instanceof Expr) {
-                String result = interpreter.interpretExpression((Expr)syntax);
+            // Resolve the entry like a file would be, so functions defined here get the same fast variable access
+            if (syntax instanceof Expr expr) {
+                resolver.resolve(expr);
+                resolver.reportUnused();
+                if (hadError) continue;
+                expr = optimizer.optimize(expr);
+
+                String result = useVm ? vm.interpretExpression(expr) : interpreter.interpretExpression(expr);
                 if (result != null) {
-                    System.out.println("= " + result);
+                    output.println("= " + result);
+                }
+            } else {
+                // Anything but an expression is a list of statements
+                List<Stmt> statements = (List<Stmt>) syntax;
+                resolver.resolve(statements);
+                resolver.reportUnused();
+                if (hadError) continue;
+                statements = optimizer.optimize(statements);
+
+                if (useVm) {
+                    vm.interpret(statements);
+                } else {
+                    interpreter.interpret(statements);
                 }
             }
         }
     }
 
-    private static void run(String source) {
-        Scanner scanner = new Scanner(source);
-        List<Token> tokens = scanner.scanTokens();
-
-        Parser parser = new Parser(tokens);
-        List<Stmt> statements = parser.parse();
-        
-        // Stop if there was a syntax error. 
-        if (hadError) return;
-        
-        Resolver resolver = new Resolver(interpreter);
-        resolver.resolve(statements);
-        
-        // Exit if there was a resolution error.
-        if (hadError) return;
-        
-        interpreter.interpret(statements);
+    private static void run(ByteBuffer source) {
+        String key = cache != null ? AstCache.key(source) : null;
+        List<Stmt> statements = key != null ? cache.load(key) : null;
+
+        if (statements == null) {
+            Scanner scanner = new Scanner(source);
+            // Pre-parsing needs the tokens kept around to come back to the skipped bodies
+            Parser parser = lazyFunctions ? new Parser(scanner.scanBuffer()) : new Parser(scanner);
+            statements = parser.parse();
+
+            // Stop if there was a syntax error.
+            if (hadError) return;
+
+            Resolver resolver = new Resolver(checkUnused);
+            resolver.resolve(statements);
+            resolver.reportUnused();
+
+            // Exit if there was a resolution error.
+            if (hadError) return;
+
+            statements = optimizer.optimize(statements);
+
+            // Only trees that made it through the resolver with every check on are cached, a cached tree is then
+            // valid whichever checks a later run asks for. Pre-parsed trees haven't been checked in full.
+            if (key != null && checkUnused && !lazyFunctions) cache.store(key, statements);
+        }
+
+        if (useVm) {
+            vm.interpret(statements);
+        } else {
+            interpreter.interpret(statements);
+        }
     }
 
     static void error(int line, String message) {
@@ -93,11 +192,18 @@ public class Lox {
     }
 
     static void runtimeError(RuntimeError error) {
-        System.err.println(error.getMessage() + "\n[line " + error.token.line + "]");
+        runtimeError(error.getMessage(), error.token.line);
+    }
+
+    static void runtimeError(String message, int line) {
+        // Keep what was printed before the error ahead of it
+        output.flush();
+        System.err.println(message + "\n[line " + line + "]");
         hadRuntimeError = true;
     }
 
     private static void report(int line, String where, String message) {
+        output.flush();
         System.err.printf("[line %d] Error%s: %s%n", line, where, message);
         hadError = true;
     }
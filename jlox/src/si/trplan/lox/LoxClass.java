@@ -5,33 +5,32 @@ import java.util.Map;
 
 public class LoxClass implements LoxCallable {
     final String name;
-    private final Map<String, LoxFunction> methods;
+    // Includes the inherited methods, the table is flattened when the class is created
+    final Map<String, LoxFunction> methods;
     private final Map<String, LoxFunction> getters;
+    private final LoxFunction initializer;
     final LoxClass superclass;
+    // Every class has its own root shape, so an instance's shape also identifies its class
+    final Shape instanceShape = new Shape();
     
     LoxClass(String name, LoxClass superclass, Map<String, LoxFunction> methods, Map<String, LoxFunction> getters) {
         this.name = name;
         this.methods = methods;
         this.getters = getters;
         this.superclass = superclass;
+        this.initializer = methods.get("init");
     }
     
     public LoxFunction findMethod(String name) {
-        if (methods.containsKey(name)) return methods.get(name);
-        if (superclass != null) {
-            return superclass.findMethod(name);
-        }
-        return null;
+        return methods.get(name);
     }
     
     public LoxFunction findGetter(String name) {
-        if (getters.containsKey(name)) return getters.get(name);
-        return null;
+        return getters.get(name);
     }
     
     @Override
     public int arity() {
-        LoxFunction initializer = this.findMethod("init");
         if(initializer == null) return 0;
         else return initializer.arity();
     }
@@ -39,9 +38,8 @@ public class LoxClass implements LoxCallable {
     @Override
     public Object call(Interpreter interpreter, List<Object> arguments) {
         LoxInstance instance = new LoxInstance(this);
-        LoxFunction initializer = this.findMethod("init");
         if (initializer != null) {
-            initializer.bind(instance).call(interpreter, arguments);    
+            initializer.invoke(interpreter, instance, arguments);
         }
         return instance;
     }
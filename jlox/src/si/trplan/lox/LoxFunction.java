@@ -6,17 +6,23 @@ public class LoxFunction implements LoxCallable {
     private final Stmt.Function declaration;
     private final Environment closure;
     private final boolean isInitializer;
+    // The instance a method was bound to, null for plain functions and unbound methods
+    private final LoxInstance receiver;
 
     LoxFunction(Stmt.Function declaration, Environment closure, boolean isInitializer) {
+        this(declaration, closure, isInitializer, null);
+    }
+
+    private LoxFunction(Stmt.Function declaration, Environment closure, boolean isInitializer,
+                        LoxInstance receiver) {
         this.declaration = declaration;
         this.closure = closure;
         this.isInitializer = isInitializer;
+        this.receiver = receiver;
     }
     
     LoxFunction bind(LoxInstance instance) {
-        Environment environment = new Environment(closure);
-        environment.define("this", instance);
-        return new LoxFunction(declaration, environment, isInitializer);
+        return new LoxFunction(declaration, closure, isInitializer, instance);
     }
 
     @Override
@@ -26,19 +32,24 @@ public class LoxFunction implements LoxCallable {
 
     @Override
     public Object call(Interpreter interpreter, List<Object> arguments) {
+        return invoke(interpreter, receiver, arguments);
+    }
+
+    /**
+     * Calls the function with the given receiver, which lets method calls skip creating a bound method.
+     * The receiver goes into the first slot of the method's environment, where the Resolver expects "this".
+     */
+    Object invoke(Interpreter interpreter, LoxInstance receiver, List<Object> arguments) {
         Environment environment = new Environment(closure);
+        if (receiver != null) {
+            environment.define("this", receiver);
+        }
         for (int i = 0; i < declaration.params.size(); i++) {
             environment.define(declaration.params.get(i).lexeme, arguments.get(i));
         }
 
-        Object returnValue = null;
-        try {
-            interpreter.executeBlock(declaration.body, environment);
-        } catch (Return ret) {
-            returnValue = ret.value;
-        }
-        
-        if(isInitializer) return closure.getAt(0, "this");
+        Object returnValue = interpreter.executeFunctionBody(declaration.body, environment);
+        if(isInitializer) return receiver;
         return returnValue;
     }
 
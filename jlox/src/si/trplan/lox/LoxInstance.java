@@ -1,29 +1,41 @@
 package si.trplan.lox;
 
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 public class LoxInstance {
-    private LoxClass klass;
-    private final Map<String, Object> fields = new HashMap<>();
+    final LoxClass klass;
+    // Fields are laid out according to the shape, see Shape
+    Shape shape;
+    private Object[] fields;
 
     LoxInstance(LoxClass klass) {
         this.klass = klass;
+        this.shape = klass.instanceShape;
+        this.fields = new Object[4];
     }
 
-    public Object get(Token name, Interpreter interpreter) {
-        if (fields.containsKey(name.lexeme)) {
-            return fields.get(name.lexeme);
+    /**
+     * Looks up a property and records what it found in the site's cache
+     */
+    public Object get(Token name, Interpreter interpreter, PropertyCache cache) {
+        int slot = shape.slotOf(name.lexeme);
+        if (slot != -1) {
+            cache.addField(shape, slot);
+            return fields[slot];
         }
         
         LoxFunction getter = klass.findGetter(name.lexeme);
         if(getter != null) {
-            return getter.bind(this).call(interpreter, new ArrayList<>());
+            cache.addFunction(shape, PropertyCache.GETTER, getter);
+            return getter.invoke(interpreter, this, new ArrayList<>());
         }
         
         LoxFunction method = klass.findMethod(name.lexeme);
-        if(method != null) return method.bind(this);
+        if(method != null) {
+            cache.addFunction(shape, PropertyCache.METHOD, method);
+            return method.bind(this);
+        }
         
         throw new RuntimeError(
                 name,
@@ -31,8 +43,26 @@ public class LoxInstance {
         );
     }
     
-    public void set(Token name, Object value) {
-        fields.put(name.lexeme, value);
+    public void set(Token name, Object value, PropertyCache cache) {
+        Shape before = shape;
+        int slot = shape.slotOf(name.lexeme);
+        if (slot == -1) {
+            slot = shape.size();
+            shape = shape.withField(name.lexeme);
+        }
+        setField(slot, value);
+        cache.addTransition(before, slot, shape);
+    }
+
+    Object getField(int slot) {
+        return fields[slot];
+    }
+
+    void setField(int slot, Object value) {
+        if (slot >= fields.length) {
+            fields = Arrays.copyOf(fields, fields.length * 2);
+        }
+        fields[slot] = value;
     }
 
     @Override
@@ -0,0 +1,90 @@
+package si.trplan.lox;
+
+import java.util.Arrays;
+
+/**
+ * The native list type. As long as a list holds nothing but numbers they are kept unboxed in a double[], the first
+ * other value moves the elements to an Object[] for good.
+ */
+class LoxList {
+    private static final int INITIAL_CAPACITY = 8;
+
+    // Elements while they are all numbers, null afterwards
+    private double[] numbers = new double[INITIAL_CAPACITY];
+    // Elements once there was something else than a number, null before
+    private Object[] values = null;
+    private int count = 0;
+
+    /**
+     * @throws NativeError If the value isn't a list
+     */
+    static LoxList cast(Object value) {
+        if (value instanceof LoxList list) return list;
+        throw new NativeError("Expecting a list.");
+    }
+
+    int size() {
+        return count;
+    }
+
+    Object get(Object index) {
+        int i = index(index);
+        return numbers != null ? (Object) numbers[i] : values[i];
+    }
+
+    void set(Object index, Object value) {
+        int i = index(index);
+        if (numbers != null) {
+            if (value instanceof Double number) {
+                numbers[i] = number;
+                return;
+            }
+            generalize();
+        }
+        values[i] = value;
+    }
+
+    void add(Object value) {
+        if (numbers != null && !(value instanceof Double)) generalize();
+
+        if (numbers != null) {
+            if (count == numbers.length) numbers = Arrays.copyOf(numbers, count * 2);
+            numbers[count++] = (double) value;
+        } else {
+            if (count == values.length) values = Arrays.copyOf(values, count * 2);
+            values[count++] = value;
+        }
+    }
+
+    /**
+     * @return The index as an int
+     * @throws NativeError If it isn't a whole number within the list
+     */
+    private int index(Object index) {
+        if (!(index instanceof Double number) || number != Math.floor(number)) {
+            throw new NativeError("List index must be a whole number.");
+        }
+        if (number < 0 || number >= count) {
+            throw new NativeError("List index " + Interpreter.stringify(number) + " is out of bounds.");
+        }
+        return (int) (double) number;
+    }
+
+    private void generalize() {
+        values = new Object[numbers.length];
+        for (int i = 0; i < count; i++) {
+            values[i] = numbers[i];
+        }
+        numbers = null;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("[");
+        for (int i = 0; i < count; i++) {
+            if (i > 0) builder.append(", ");
+            builder.append(Interpreter.stringify(numbers != null ? (Object) numbers[i] : values[i]));
+        }
+        return builder.append("]").toString();
+    }
+}
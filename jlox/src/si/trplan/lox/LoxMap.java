@@ -0,0 +1,162 @@
+package si.trplan.lox;
+
+/**
+ * The native map type, an open addressing hash table with linear probing like clox's table.c. Keys and values sit in
+ * two parallel arrays, a removed entry leaves a tombstone behind so the probe sequences running through it stay
+ * intact.
+ * <p>
+ * String keys are interned (see Interpreter.isEqual), so they hash with String's cached hash code and compare by
+ * identity. Numbers compare by value, anything else by identity.
+ */
+class LoxMap {
+    private static final Object TOMBSTONE = new Object();
+    private static final int INITIAL_CAPACITY = 8;
+    private static final double MAX_LOAD = 0.75;
+
+    private Object[] keys = new Object[INITIAL_CAPACITY];
+    private Object[] values = new Object[INITIAL_CAPACITY];
+    // Slots that aren't empty, tombstones included as they lengthen probe sequences just the same
+    private int used = 0;
+    private int size = 0;
+
+    /**
+     * @throws NativeError If the value isn't a map
+     */
+    static LoxMap cast(Object value) {
+        if (value instanceof LoxMap map) return map;
+        throw new NativeError("Expecting a map.");
+    }
+
+    int size() {
+        return size;
+    }
+
+    int capacity() {
+        return keys.length;
+    }
+
+    /**
+     * @return The value, or null (nil) if there's no such key
+     */
+    Object get(Object key) {
+        key = key(key);
+        int slot = find(keys, key);
+        return isLive(keys[slot]) ? values[slot] : null;
+    }
+
+    void put(Object key, Object value) {
+        key = key(key);
+        if (used + 1 > keys.length * MAX_LOAD) rehash();
+
+        int slot = find(keys, key);
+        Object existing = keys[slot];
+        if (existing == null) used++;
+        if (!isLive(existing)) size++;
+        keys[slot] = key;
+        values[slot] = value;
+    }
+
+    /**
+     * @return The removed value, or null (nil) if there was no such key
+     */
+    Object remove(Object key) {
+        key = key(key);
+        int slot = find(keys, key);
+        if (!isLive(keys[slot])) return null;
+
+        Object value = values[slot];
+        keys[slot] = TOMBSTONE;
+        values[slot] = null;
+        size--;
+        return value;
+    }
+
+    /**
+     * @return The keys in table order
+     */
+    LoxList keys() {
+        LoxList list = new LoxList();
+        for (Object key : keys) {
+            if (isLive(key)) list.add(key);
+        }
+        return list;
+    }
+
+    /**
+     * @return The slot holding the key, otherwise where it should be inserted: the first tombstone on the way or
+     * the empty slot ending the probe sequence
+     */
+    private static int find(Object[] keys, Object key) {
+        int mask = keys.length - 1;
+        int index = hash(key) & mask;
+        int tombstone = -1;
+        while (true) {
+            Object candidate = keys[index];
+            if (candidate == null) {
+                return tombstone != -1 ? tombstone : index;
+            } else if (candidate == TOMBSTONE) {
+                if (tombstone == -1) tombstone = index;
+            } else if (candidate == key || (key instanceof Double && key.equals(candidate))) {
+                return index;
+            }
+            index = (index + 1) & mask;
+        }
+    }
+
+    private static int hash(Object key) {
+        int hash;
+        if (key instanceof String string) {
+            hash = string.hashCode();
+        } else if (key instanceof Double number) {
+            hash = number.hashCode();
+        } else {
+            hash = System.identityHashCode(key);
+        }
+        // Whole numbers differ only in the high bits, spread them over the ones the mask keeps
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * @throws NativeError If the key is nil
+     */
+    private static Object key(Object key) {
+        if (key == null) throw new NativeError("Map key can't be nil.");
+        if (key instanceof ConcatString string) return string.toString().intern();
+        return key;
+    }
+
+    private static boolean isLive(Object key) {
+        return key != null && key != TOMBSTONE;
+    }
+
+    /**
+     * Rehashes into a new table, twice as big unless most of the used slots are tombstones. A map that keeps
+     * getting keys put and removed then stays the same size instead of growing without bound.
+     */
+    private void rehash() {
+        Object[] oldKeys = keys;
+        Object[] oldValues = values;
+        int capacity = size < oldKeys.length * MAX_LOAD / 2 ? oldKeys.length : oldKeys.length * 2;
+        keys = new Object[capacity];
+        values = new Object[capacity];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (!isLive(oldKeys[i])) continue;
+            int slot = find(keys, oldKeys[i]);
+            keys[slot] = oldKeys[i];
+            values[slot] = oldValues[i];
+        }
+        used = size;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("{");
+        for (int i = 0; i < keys.length; i++) {
+            if (!isLive(keys[i])) continue;
+            if (builder.length() > 1) builder.append(", ");
+            builder.append(Interpreter.stringify(keys[i])).append(": ").append(Interpreter.stringify(values[i]));
+        }
+        return builder.append("}").toString();
+    }
+}
@@ -0,0 +1,12 @@
+package si.trplan.lox;
+
+/**
+ * Thrown by native functions, which don't know where they were called from. The Interpreter turns it into a
+ * RuntimeError at the call.
+ */
+@SuppressWarnings("serial")
+class NativeError extends RuntimeException {
+    NativeError(String message) {
+        super(message, null, false, false);
+    }
+}
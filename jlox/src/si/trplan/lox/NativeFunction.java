@@ -0,0 +1,38 @@
+package si.trplan.lox;
+
+import java.util.List;
+
+/**
+ * A function implemented in Java that the Interpreter defines as a global
+ */
+class NativeFunction implements LoxCallable {
+    interface Body {
+        /**
+         * @throws NativeError If the arguments are wrong, the Interpreter reports it at the call
+         */
+        Object call(List<Object> arguments);
+    }
+
+    private final int arity;
+    private final Body body;
+
+    NativeFunction(int arity, Body body) {
+        this.arity = arity;
+        this.body = body;
+    }
+
+    @Override
+    public int arity() {
+        return arity;
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, List<Object> arguments) {
+        return body.call(arguments);
+    }
+
+    @Override
+    public String toString() {
+        return "<native fn>";
+    }
+}
@@ -0,0 +1,51 @@
+package si.trplan.lox;
+
+import java.util.List;
+
+/**
+ * The native functions, which both the Interpreter and the VM define as globals so the two engines run the same
+ * language
+ */
+final class Natives {
+    record Native(String name, int arity, NativeFunction.Body body) {
+    }
+
+    static final List<Native> ALL = List.of(
+            new Native("clock", 0, arguments -> (double) System.currentTimeMillis() / 1000.0),
+
+            // Lists and maps, get, set and length take either
+            new Native("list", 0, arguments -> new LoxList()),
+            new Native("append", 2, arguments -> {
+                LoxList.cast(arguments.get(0)).add(arguments.get(1));
+                return null;
+            }),
+            new Native("map", 0, arguments -> new LoxMap()),
+            new Native("remove", 2, arguments -> LoxMap.cast(arguments.get(0)).remove(arguments.get(1))),
+            new Native("keys", 1, arguments -> LoxMap.cast(arguments.get(0)).keys()),
+            new Native("get", 2, arguments -> switch (arguments.get(0)) {
+                case LoxList list -> list.get(arguments.get(1));
+                case LoxMap map -> map.get(arguments.get(1));
+                default -> throw notACollection();
+            }),
+            new Native("set", 3, arguments -> {
+                switch (arguments.get(0)) {
+                    case LoxList list -> list.set(arguments.get(1), arguments.get(2));
+                    case LoxMap map -> map.put(arguments.get(1), arguments.get(2));
+                    default -> throw notACollection();
+                }
+                return arguments.get(2);
+            }),
+            new Native("length", 1, arguments -> switch (arguments.get(0)) {
+                case LoxList list -> (double) list.size();
+                case LoxMap map -> (double) map.size();
+                default -> throw notACollection();
+            })
+    );
+
+    private Natives() {
+    }
+
+    private static NativeError notACollection() {
+        return new NativeError("Expecting a list or a map.");
+    }
+}
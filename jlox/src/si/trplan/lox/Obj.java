@@ -0,0 +1,116 @@
+package si.trplan.lox;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Heap objects of the bytecode VM, see clox's object.h. Numbers, strings, booleans and nil are represented the
+ * same way as in the Interpreter (Double, String, Boolean and null).
+ */
+abstract class Obj {
+    static class Function extends Obj {
+        int arity = 0;
+        int upvalueCount = 0;
+        final Chunk chunk = new Chunk();
+        // null for the top-level script and anonymous functions
+        final String name;
+
+        Function(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String toString() {
+            if (name == null) return "<fn>";
+            return "<fn " + name + ">";
+        }
+    }
+
+    static class Native extends Obj {
+        final int arity;
+        final NativeFunction.Body function;
+
+        Native(int arity, NativeFunction.Body function) {
+            this.arity = arity;
+            this.function = function;
+        }
+
+        @Override
+        public String toString() {
+            return "<native fn>";
+        }
+    }
+
+    static class Closure extends Obj {
+        final Function function;
+        final Upvalue[] upvalues;
+
+        Closure(Function function) {
+            this.function = function;
+            this.upvalues = new Upvalue[function.upvalueCount];
+        }
+
+        @Override
+        public String toString() {
+            return function.toString();
+        }
+    }
+
+    static class Upvalue extends Obj {
+        // Index of the captured variable on the VM stack while it is open, -1 once it has been closed
+        int location;
+        Object closed = null;
+        // The next open upvalue, lower on the stack
+        Upvalue next = null;
+
+        Upvalue(int location) {
+            this.location = location;
+        }
+    }
+
+    static class Class extends Obj {
+        final String name;
+        // Inherited methods are copied down when the class is created
+        final Map<String, Closure> methods = new HashMap<>();
+        final Map<String, Closure> getters = new HashMap<>();
+        Closure initializer = null;
+
+        Class(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    static class Instance extends Obj {
+        final Class klass;
+        final Map<String, Object> fields = new HashMap<>();
+
+        Instance(Class klass) {
+            this.klass = klass;
+        }
+
+        @Override
+        public String toString() {
+            return klass.name + " instance";
+        }
+    }
+
+    static class BoundMethod extends Obj {
+        final Object receiver;
+        final Closure method;
+
+        BoundMethod(Object receiver, Closure method) {
+            this.receiver = receiver;
+            this.method = method;
+        }
+
+        @Override
+        public String toString() {
+            return method.toString();
+        }
+    }
+}
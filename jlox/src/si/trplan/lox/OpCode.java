@@ -0,0 +1,62 @@
+package si.trplan.lox;
+
+/**
+ * Instruction set of the bytecode VM. These are plain byte constants instead of an enum so the VM can switch
+ * directly on the bytes stored in a Chunk. Operands noted in the comments follow the opcode in the code array,
+ * "short" operands are two bytes in big-endian order.
+ */
+final class OpCode {
+    private OpCode() {
+    }
+
+    // short: constant index
+    static final byte CONSTANT = 0;
+    static final byte NIL = 1;
+    static final byte TRUE = 2;
+    static final byte FALSE = 3;
+    static final byte POP = 4;
+    // byte: stack slot relative to the frame
+    static final byte GET_LOCAL = 5;
+    static final byte SET_LOCAL = 6;
+    // short: constant index of the name
+    static final byte GET_GLOBAL = 7;
+    static final byte DEFINE_GLOBAL = 8;
+    static final byte SET_GLOBAL = 9;
+    // byte: index into the closure's upvalues
+    static final byte GET_UPVALUE = 10;
+    static final byte SET_UPVALUE = 11;
+    // short: constant index of the property name
+    static final byte GET_PROPERTY = 12;
+    static final byte SET_PROPERTY = 13;
+    static final byte GET_SUPER = 14;
+    static final byte EQUAL = 15;
+    static final byte NOT_EQUAL = 16;
+    static final byte GREATER = 17;
+    static final byte GREATER_EQUAL = 18;
+    static final byte LESS = 19;
+    static final byte LESS_EQUAL = 20;
+    static final byte ADD = 21;
+    static final byte SUBTRACT = 22;
+    static final byte MULTIPLY = 23;
+    static final byte DIVIDE = 24;
+    static final byte NOT = 25;
+    static final byte NEGATE = 26;
+    static final byte PRINT = 27;
+    // short: forward offset
+    static final byte JUMP = 28;
+    static final byte JUMP_IF_FALSE = 29;
+    // short: backward offset
+    static final byte LOOP = 30;
+    // byte: argument count
+    static final byte CALL = 31;
+    // short: constant index of the function, followed by an (isLocal, index) byte pair for every upvalue
+    static final byte CLOSURE = 32;
+    static final byte CLOSE_UPVALUE = 33;
+    static final byte RETURN = 34;
+    // short: constant index of the class name
+    static final byte CLASS = 35;
+    static final byte INHERIT = 36;
+    // short: constant index of the method name
+    static final byte METHOD = 37;
+    static final byte GETTER = 38;
+}
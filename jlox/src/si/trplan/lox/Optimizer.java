@@ -0,0 +1,303 @@
+package si.trplan.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Rewrites a resolved tree before it is run: folds operators whose operands are literals, strips groupings and
+ * drops code that can never run (untaken constant branches, loops that never start and statements following a
+ * return or break). Nodes whose children didn't change are reused as they are.
+ * <p>
+ * It runs after the Resolver so that errors and unused variables in dead code are still reported, and removing
+ * code never changes the slots the Resolver handed out.
+ */
+public class Optimizer implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+    List<Stmt> optimize(List<Stmt> statements) {
+        return optimizeStatements(statements, false);
+    }
+
+    /**
+     * Optimizes the statements of a function body
+     */
+    List<Stmt> optimizeBody(List<Stmt> statements) {
+        return optimizeStatements(statements, true);
+    }
+
+    Expr optimize(Expr expr) {
+        if (expr == null) return null;
+        return expr.accept(this);
+    }
+
+    /**
+     * @return The optimized statement, null if it can be dropped
+     */
+    private Stmt optimize(Stmt stmt) {
+        if (stmt == null) return null;
+        return stmt.accept(this);
+    }
+
+    /**
+     * For statements that can't be left out, like the body of a loop
+     */
+    private Stmt optimizeRequired(Stmt stmt) {
+        Stmt optimized = optimize(stmt);
+        return optimized != null ? optimized : new Stmt.Block(new ArrayList<>());
+    }
+
+    /**
+     * @param inFunction True for blocks and function bodies, where nothing after a return or break can run. At the
+     *                   top level those are errors that were already reported, so the rest is left alone.
+     */
+    private List<Stmt> optimizeStatements(List<Stmt> statements, boolean inFunction) {
+        List<Stmt> optimized = new ArrayList<>(statements.size());
+        for (Stmt statement : statements) {
+            Stmt result = optimize(statement);
+            if (result == null) continue;
+            optimized.add(result);
+            if (inFunction && terminates(result)) break;
+        }
+        return optimized;
+    }
+
+    /**
+     * @return True if the statement always ends with a return or break
+     */
+    private static boolean terminates(Stmt stmt) {
+        if (stmt instanceof Stmt.Return || stmt instanceof Stmt.Break) return true;
+        if (stmt instanceof Stmt.Block block) {
+            return !block.statements.isEmpty() && terminates(block.statements.getLast());
+        }
+        if (stmt instanceof Stmt.If ifStmt) {
+            return ifStmt.elseBranch != null && terminates(ifStmt.thenBranch) && terminates(ifStmt.elseBranch);
+        }
+        return false;
+    }
+
+    private static boolean isConstant(Expr expr) {
+        return expr instanceof Expr.Literal;
+    }
+
+    private static Object valueOf(Expr expr) {
+        return ((Expr.Literal) expr).value;
+    }
+
+    @Override
+    public Expr visitAssignExpr(Expr.Assign expr) {
+        Expr value = optimize(expr.value);
+        if (value == expr.value) return expr;
+        Expr.Assign assign = new Expr.Assign(expr.name, value);
+        assign.depth = expr.depth;
+        assign.slot = expr.slot;
+        return assign;
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        Expr left = optimize(expr.left);
+        Expr right = optimize(expr.right);
+        if (isConstant(left) && isConstant(right)) {
+            Object value = fold(expr.operator, valueOf(left), valueOf(right));
+            if (value != null) return new Expr.Literal(value);
+        }
+        if (left == expr.left && right == expr.right) return expr;
+        return new Expr.Binary(left, expr.operator, right);
+    }
+
+    /**
+     * Follows the Interpreter's semantics exactly
+     *
+     * @return The result, or null if the operation would be a runtime error which is left for the Interpreter to
+     * report
+     */
+    private static Object fold(Token operator, Object left, Object right) {
+        switch (operator.type) {
+            case EQUAL_EQUAL:
+                return Interpreter.isEqual(left, right);
+            case BANG_EQUAL:
+                return !Interpreter.isEqual(left, right);
+            case PLUS:
+                if (left instanceof String a && right instanceof String b) return (a + b).intern();
+                break;
+            default:
+                break;
+        }
+        if (!(left instanceof Double a) || !(right instanceof Double b)) return null;
+        return switch (operator.type) {
+            case GREATER -> a > b;
+            case GREATER_EQUAL -> a >= b;
+            case LESS -> a < b;
+            case LESS_EQUAL -> a <= b;
+            case MINUS -> a - b;
+            case PLUS -> a + b;
+            case STAR -> a * b;
+            case SLASH -> b == 0.0 ? null : a / b;
+            default -> null;
+        };
+    }
+
+    @Override
+    public Expr visitLogicalExpr(Expr.Logical expr) {
+        Expr left = optimize(expr.left);
+        Expr right = optimize(expr.right);
+        if (isConstant(left)) {
+            // The result is one of the operands, so a constant left operand decides which
+            boolean truthy = Interpreter.isTruthy(valueOf(left));
+            boolean shortCircuits = expr.operator.type == TokenType.OR ? truthy : !truthy;
+            return shortCircuits ? left : right;
+        }
+        if (left == expr.left && right == expr.right) return expr;
+        return new Expr.Logical(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+        // Groupings only matter to the parser, the tree already has the right shape
+        return optimize(expr.expression);
+    }
+
+    @Override
+    public Expr visitCallExpr(Expr.Call expr) {
+        Expr callee = optimize(expr.callee);
+        List<Expr> arguments = new ArrayList<>(expr.arguments.size());
+        boolean changed = callee != expr.callee;
+        for (Expr argument : expr.arguments) {
+            Expr optimized = optimize(argument);
+            changed |= optimized != argument;
+            arguments.add(optimized);
+        }
+        if (!changed) return expr;
+        return new Expr.Call(callee, expr.paren, arguments);
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        Expr right = optimize(expr.right);
+        if (isConstant(right)) {
+            Object value = valueOf(right);
+            if (expr.operator.type == TokenType.BANG) return new Expr.Literal(!Interpreter.isTruthy(value));
+            if (expr.operator.type == TokenType.MINUS && value instanceof Double number) {
+                return new Expr.Literal(-number);
+            }
+        }
+        if (right == expr.right) return expr;
+        return new Expr.Unary(expr.operator, right);
+    }
+
+    @Override
+    public Expr visitSetExpr(Expr.Set expr) {
+        Expr object = optimize(expr.object);
+        Expr value = optimize(expr.value);
+        if (object == expr.object && value == expr.value) return expr;
+        return new Expr.Set(object, expr.name, value);
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitFunctionExpr(Expr.Function expr) {
+        return new Expr.Function(expr.params, optimizeStatements(expr.body, true));
+    }
+
+    @Override
+    public Expr visitGetExpr(Expr.Get expr) {
+        Expr object = optimize(expr.object);
+        if (object == expr.object) return expr;
+        return new Expr.Get(object, expr.name);
+    }
+
+    @Override
+    public Expr visitThisExpr(Expr.This expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitSuperExpr(Expr.Super expr) {
+        return expr;
+    }
+
+    @Override
+    public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+        Expr expression = optimize(stmt.expression);
+        // A literal on its own does nothing
+        if (isConstant(expression)) return null;
+        if (expression == stmt.expression) return stmt;
+        return new Stmt.Expression(expression);
+    }
+
+    @Override
+    public Stmt visitPrintStmt(Stmt.Print stmt) {
+        Expr expression = optimize(stmt.expresion);
+        if (expression == stmt.expresion) return stmt;
+        return new Stmt.Print(expression);
+    }
+
+    @Override
+    public Stmt visitVarStmt(Stmt.Var stmt) {
+        Expr initializer = optimize(stmt.initializer);
+        if (initializer == stmt.initializer) return stmt;
+        return new Stmt.Var(stmt.name, initializer);
+    }
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        return new Stmt.Block(optimizeStatements(stmt.statements, true));
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(Stmt.Function stmt) {
+        // A pre-parsed body gets optimized once it's parsed
+        if (stmt.body instanceof LazyBody body && !body.isParsed()) return stmt;
+        return new Stmt.Function(stmt.name, stmt.params, optimizeStatements(stmt.body, true));
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt) {
+        Expr condition = optimize(stmt.condition);
+        if (isConstant(condition)) {
+            // Only the taken branch is left. The branches are statements, not declarations, so this doesn't
+            // change which scope anything is declared in.
+            return optimize(Interpreter.isTruthy(valueOf(condition)) ? stmt.thenBranch : stmt.elseBranch);
+        }
+        return new Stmt.If(condition, optimizeRequired(stmt.thenBranch), optimize(stmt.elseBranch));
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+        Expr condition = optimize(stmt.condition);
+        if (isConstant(condition) && !Interpreter.isTruthy(valueOf(condition))) return null;
+        return new Stmt.While(condition, optimizeRequired(stmt.statement));
+    }
+
+    @Override
+    public Stmt visitBreakStmt(Stmt.Break stmt) {
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitReturnStmt(Stmt.Return stmt) {
+        Expr value = optimize(stmt.value);
+        if (value == stmt.value) return stmt;
+        return new Stmt.Return(stmt.keyword, value);
+    }
+
+    @Override
+    public Stmt visitClassStmt(Stmt.Class stmt) {
+        List<Stmt.Function> methods = new ArrayList<>(stmt.methods.size());
+        for (Stmt.Function method : stmt.methods) {
+            methods.add((Stmt.Function) optimize(method));
+        }
+        List<Stmt.Function> getters = new ArrayList<>(stmt.getters.size());
+        for (Stmt.Function getter : stmt.getters) {
+            getters.add((Stmt.Function) optimize(getter));
+        }
+        return new Stmt.Class(stmt.name, stmt.superclass, methods, getters);
+    }
+}
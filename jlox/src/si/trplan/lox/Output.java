@@ -0,0 +1,115 @@
+package si.trplan.lox;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Where print statements write to. Values are formatted straight into a buffer which goes to the channel only when
+ * it fills up or on flush(), so a print costs neither a lock nor a system call. Whole numbers, the common case, are
+ * formatted without allocating.
+ * <p>
+ * Like System.out a failed write doesn't stop the script, the output is dropped from then on.
+ */
+final class Output {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // Double.toString() switches to scientific notation from here on
+    private static final double MAX_PLAIN = 1e7;
+
+    private final WritableByteChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    // Scratch space to format a number from its last digit
+    private final byte[] digits = new byte[20];
+    private boolean failed = false;
+
+    Output(WritableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    static Output stdout() {
+        return new Output(Channels.newChannel(new FileOutputStream(FileDescriptor.out)));
+    }
+
+    /**
+     * Writes the value as Interpreter.stringify() would, followed by a newline
+     */
+    void println(Object value) {
+        switch (value) {
+            case Double number -> write(number);
+            case String string -> write(string);
+            case null -> write("nil");
+            default -> write(Interpreter.stringify(value));
+        }
+        put((byte) '\n');
+    }
+
+    void println(String text) {
+        write(text);
+        put((byte) '\n');
+    }
+
+    void flush() {
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining() && !failed) {
+                channel.write(buffer);
+            }
+        } catch (IOException e) {
+            failed = true;
+        }
+        buffer.clear();
+    }
+
+    private void write(double number) {
+        long whole = (long) number;
+        // -0 keeps its sign when stringified
+        if (whole != number || Math.abs(number) >= MAX_PLAIN || (whole == 0 && 1 / number < 0)) {
+            write(Interpreter.stringify(number));
+            return;
+        }
+
+        if (whole < 0) {
+            put((byte) '-');
+            whole = -whole;
+        }
+        int start = digits.length;
+        do {
+            digits[--start] = (byte) ('0' + whole % 10);
+            whole /= 10;
+        } while (whole != 0);
+
+        if (buffer.remaining() < digits.length - start) flush();
+        buffer.put(digits, start, digits.length - start);
+    }
+
+    private void write(String text) {
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c >= 0x80) {
+                write(text.substring(i).getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            put((byte) c);
+        }
+    }
+
+    private void write(byte[] bytes) {
+        int offset = 0;
+        while (offset < bytes.length) {
+            if (!buffer.hasRemaining()) flush();
+            int count = Math.min(buffer.remaining(), bytes.length - offset);
+            buffer.put(bytes, offset, count);
+            offset += count;
+        }
+    }
+
+    private void put(byte b) {
+        if (!buffer.hasRemaining()) flush();
+        buffer.put(b);
+    }
+}
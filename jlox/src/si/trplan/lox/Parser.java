@@ -33,7 +33,7 @@ import static si.trplan.lox.TokenType.*;
  *
  * arguments -> expression ( "," expression )* ;
  *
- * EXPRESSION GRAMMAR:
+ * EXPRESSION GRAMMAR (parsed by precedence climbing over the rules table, the levels below are the precedences):
  * expression → assignment ;
  * assignment -> logic_or | IDENTIFIER "=" assignment;
  * logic_or -> logic_and ( "||" logic_and )*;
@@ -52,14 +52,104 @@ public class Parser {
     private static class ParseError extends RuntimeException {
     }
 
-    private final List<Token> tokens;
-    private int current;
+    /**
+     * How tightly an infix operator binds, lowest first
+     */
+    private enum Precedence {
+        NONE,
+        ASSIGNMENT, // =
+        OR,         // or
+        AND,        // and
+        EQUALITY,   // == !=
+        COMPARISON, // < > <= >=
+        TERM,       // + -
+        FACTOR,     // * /
+        UNARY,      // ! -
+        CALL,       // . ()
+        PRIMARY;
+
+        Precedence next() {
+            return values()[ordinal() + 1];
+        }
+    }
+
+    private interface PrefixRule {
+        Expr parse(Parser parser);
+    }
+
+    private interface InfixRule {
+        Expr parse(Parser parser, Expr left);
+    }
+
+    /**
+     * @param prefix     Parses an expression starting with the token, which has already been consumed
+     * @param infix      Parses an expression with the token as operator after its left operand
+     * @param precedence Precedence of the token as an infix operator
+     */
+    private record ParseRule(PrefixRule prefix, InfixRule infix, Precedence precedence) {
+    }
+
+    // Indexed by TokenType ordinal
+    private static final ParseRule[] rules = new ParseRule[TokenType.values().length];
+
+    static {
+        Arrays.fill(rules, new ParseRule(null, null, Precedence.NONE));
+        rules[LEFT_PAREN.ordinal()] = new ParseRule(Parser::grouping, Parser::call, Precedence.CALL);
+        rules[DOT.ordinal()] = new ParseRule(null, Parser::dot, Precedence.CALL);
+        rules[MINUS.ordinal()] = new ParseRule(Parser::unary, Parser::binary, Precedence.TERM);
+        rules[PLUS.ordinal()] = new ParseRule(null, Parser::binary, Precedence.TERM);
+        rules[SLASH.ordinal()] = new ParseRule(null, Parser::binary, Precedence.FACTOR);
+        rules[STAR.ordinal()] = new ParseRule(null, Parser::binary, Precedence.FACTOR);
+        rules[BANG.ordinal()] = new ParseRule(Parser::unary, null, Precedence.NONE);
+        rules[BANG_EQUAL.ordinal()] = new ParseRule(null, Parser::binary, Precedence.EQUALITY);
+        rules[EQUAL.ordinal()] = new ParseRule(null, Parser::assignment, Precedence.ASSIGNMENT);
+        rules[EQUAL_EQUAL.ordinal()] = new ParseRule(null, Parser::binary, Precedence.EQUALITY);
+        rules[GREATER.ordinal()] = new ParseRule(null, Parser::binary, Precedence.COMPARISON);
+        rules[GREATER_EQUAL.ordinal()] = new ParseRule(null, Parser::binary, Precedence.COMPARISON);
+        rules[LESS.ordinal()] = new ParseRule(null, Parser::binary, Precedence.COMPARISON);
+        rules[LESS_EQUAL.ordinal()] = new ParseRule(null, Parser::binary, Precedence.COMPARISON);
+        rules[IDENTIFIER.ordinal()] = new ParseRule(Parser::variable, null, Precedence.NONE);
+        rules[STRING.ordinal()] = new ParseRule(Parser::literal, null, Precedence.NONE);
+        rules[NUMBER.ordinal()] = new ParseRule(Parser::literal, null, Precedence.NONE);
+        rules[AND.ordinal()] = new ParseRule(null, Parser::logical, Precedence.AND);
+        rules[OR.ordinal()] = new ParseRule(null, Parser::logical, Precedence.OR);
+        rules[FALSE.ordinal()] = new ParseRule(Parser::literal, null, Precedence.NONE);
+        rules[TRUE.ordinal()] = new ParseRule(Parser::literal, null, Precedence.NONE);
+        rules[NIL.ordinal()] = new ParseRule(Parser::literal, null, Precedence.NONE);
+        rules[FUN.ordinal()] = new ParseRule(Parser::funcExpr, null, Precedence.NONE);
+        rules[THIS.ordinal()] = new ParseRule(Parser::thisExpr, null, Precedence.NONE);
+        rules[SUPER.ordinal()] = new ParseRule(Parser::superExpr, null, Precedence.NONE);
+    }
+
+    // Tokens are pulled from the source as the parser advances, it only keeps the ones it can still look at
+    private final TokenSource tokens;
+    private Token previous = null;
+    private Token current;
+    // Second token of lookahead, only scanned when peekNext() asks for it
+    private Token next = null;
 
     private boolean allowExpression;
     private boolean foundExpression = false;
 
-    Parser(List<Token> tokens) {
+    // Set in pre-parse mode, where the bodies of top-level functions and methods are skipped and left as LazyBody
+    private final TokenBuffer buffer;
+    private final TokenBuffer.Cursor cursor;
+
+    Parser(TokenSource tokens) {
         this.tokens = tokens;
+        this.current = tokens.nextToken();
+        this.buffer = null;
+        this.cursor = null;
+    }
+
+    /**
+     * Pre-parse mode. Function bodies are only parsed on first use, from the same buffer.
+     */
+    Parser(TokenBuffer buffer) {
+        this.buffer = buffer;
+        this.cursor = buffer.cursor(0);
+        this.tokens = cursor;
+        this.current = tokens.nextToken();
     }
 
     Object parseRepl() {
@@ -82,20 +172,42 @@ public class Parser {
     List<Stmt> parse() {
         List<Stmt> statements = new ArrayList<>();
         while (!isAtEnd()) {
-            statements.add(declaration());
+            // Only top-level declarations can be pre-parsed, a function nested in a block would need the block's
+            // scope to be resolved later
+            statements.add(declaration(buffer != null));
         }
         return statements;
     }
 
+    /**
+     * Parses the statements of a function body that was skipped in pre-parse mode, starting after its '{'
+     *
+     * @return The statements, null if the closing brace is missing
+     */
+    List<Stmt> parseBody() {
+        try {
+            return block();
+        } catch (ParseError error) {
+            return null;
+        }
+    }
+
     private Expr expression() {
-        return assignment();
+        return parsePrecedence(Precedence.ASSIGNMENT);
     }
 
     private Stmt declaration() {
+        return declaration(false);
+    }
+
+    /**
+     * @param lazy Whether the bodies of the function or class declared here can be skipped
+     */
+    private Stmt declaration(boolean lazy) {
         try {
             if (match(VAR)) return varDeclaration();
-            if (match(FUN)) return function("function");
-            if (match(CLASS)) return classDeclaration();
+            if (match(FUN)) return function("function", lazy);
+            if (match(CLASS)) return classDeclaration(lazy);
             return statement();
         } catch (ParseError error) {
             synchronize();
@@ -103,7 +215,7 @@ public class Parser {
         }
     }
 
-    private Stmt classDeclaration() {
+    private Stmt classDeclaration(boolean lazy) {
         Token name = consume(IDENTIFIER, "Expect identifier after class keyword.");
 
         Expr.Variable superclass = null;
@@ -119,9 +231,9 @@ public class Parser {
             // Check if it is a function or a getter
             Token next = peekNext();
             if (next != null && next.type == LEFT_BRACE) {
-                getters.add((Stmt.Function) getter());
+                getters.add((Stmt.Function) getter(lazy));
             } else {
-                methods.add((Stmt.Function) function("method"));
+                methods.add((Stmt.Function) function("method", lazy));
             }
         }
 
@@ -129,14 +241,32 @@ public class Parser {
         return new Stmt.Class(name, superclass, methods, getters);
     }
 
-    private Stmt getter() {
+    private Stmt getter(boolean lazy) {
         Token name = consume(IDENTIFIER, "Expect getter name.");
         consume(LEFT_BRACE, "Expect '{' after getter name.");
-        List<Stmt> body = block();
+        List<Stmt> body = lazy ? skipBody() : block();
         return new Stmt.Function(name, new ArrayList<>(), body);
     }
 
-    private Stmt function(String kind) {
+    /**
+     * Skips a function body up to its closing brace, only checking that the braces balance
+     *
+     * @return A body that parses the skipped tokens once it is needed
+     */
+    private List<Stmt> skipBody() {
+        // Right after advance() there is no extra lookahead, so the cursor is one past the current token
+        LazyBody body = new LazyBody(buffer, cursor.position() - 1);
+        int depth = 1;
+        while (!isAtEnd()) {
+            if (check(LEFT_BRACE)) depth++;
+            if (check(RIGHT_BRACE) && --depth == 0) break;
+            advance();
+        }
+        consume(RIGHT_BRACE, "Expecting closing '}' after block");
+        return body;
+    }
+
+    private Stmt function(String kind, boolean lazy) {
         Token name = consume(IDENTIFIER, "Expect " + kind + " name.");
 
         consume(LEFT_PAREN, "Expect '(' after " + kind + " name.");
@@ -155,7 +285,7 @@ public class Parser {
         consume(RIGHT_PAREN, "Expect ')' after " + kind + " arguments.");
 
         consume(LEFT_BRACE, "Expect '{' before " + kind + " body.");
-        List<Stmt> body = block();
+        List<Stmt> body = lazy ? skipBody() : block();
 
         return new Stmt.Function(name, parameters, body);
     }
@@ -291,80 +421,76 @@ public class Parser {
         return statements;
     }
 
-    private Expr assignment() {
-        Expr expr = logicOr();
-        if (match(EQUAL)) {
-            Token equals = previous();
-            Expr value = assignment();
-
-            if (expr instanceof Expr.Variable) {
-                Token name = ((Expr.Variable) expr).name;
-                return new Expr.Assign(name, value);
-            } else if (expr instanceof Expr.Get) {
-                Expr.Get getExpr = (Expr.Get) expr;
-                return new Expr.Set(getExpr.object, getExpr.name, value);
-            }
+    /**
+     * Parses an expression whose operators all bind at least as tightly as precedence. Each token's prefix and infix
+     * rule comes from the rules table, like in clox's compiler.c, so an operand only costs a couple of frames
+     * instead of one per grammar level.
+     */
+    private Expr parsePrecedence(Precedence precedence) {
+        PrefixRule prefix = rules[peek().type.ordinal()].prefix;
+        if (prefix == null) throw error(peek(), "Expecting expression.");
+        advance();
+        Expr expr = prefix.parse(this);
 
-            // We don't throw the error because we don't need the synchronization. We just report it.
-            //noinspection ThrowableNotThrown
-            error(equals, "Invalid assignment target.");
+        while (true) {
+            ParseRule rule = rules[peek().type.ordinal()];
+            if (rule.infix == null || rule.precedence.ordinal() < precedence.ordinal()) break;
+            // As in the grammar, a function expression can't be called or accessed directly, only once grouped
+            if (rule.precedence == Precedence.CALL && expr instanceof Expr.Function) break;
+            advance();
+            expr = rule.infix.parse(this, expr);
         }
         return expr;
     }
 
-    private Expr logicOr() {
-        return parseLeftAssocLogical(this::logicAnd, OR);
-    }
+    private Expr assignment(Expr target) {
+        Token equals = previous();
+        // Assignment is right associative, so the value may be another assignment
+        Expr value = parsePrecedence(Precedence.ASSIGNMENT);
 
-    private Expr logicAnd() {
-        return parseLeftAssocLogical(this::equality, AND);
-    }
+        if (target instanceof Expr.Variable) {
+            Token name = ((Expr.Variable) target).name;
+            return new Expr.Assign(name, value);
+        } else if (target instanceof Expr.Get) {
+            Expr.Get getExpr = (Expr.Get) target;
+            return new Expr.Set(getExpr.object, getExpr.name, value);
+        }
 
-    private Expr equality() {
-        return parseLeftAssocBinary(this::comparison, EQUAL_EQUAL, BANG_EQUAL);
+        // We don't throw the error because we don't need the synchronization. We just report it.
+        //noinspection ThrowableNotThrown
+        error(equals, "Invalid assignment target.");
+        return target;
     }
 
-    private Expr comparison() {
-        return parseLeftAssocBinary(this::term, LESS, LESS_EQUAL, GREATER, GREATER_EQUAL);
+    private Expr logical(Expr left) {
+        Token operator = previous();
+        Expr right = parsePrecedence(rules[operator.type.ordinal()].precedence.next());
+        return new Expr.Logical(left, operator, right);
     }
 
-    private Expr term() {
-        return parseLeftAssocBinary(this::factor, PLUS, MINUS);
+    private Expr binary(Expr left) {
+        Token operator = previous();
+        // Parsing the right operand one level tighter makes the operator left associative
+        Expr right = parsePrecedence(rules[operator.type.ordinal()].precedence.next());
+        return new Expr.Binary(left, operator, right);
     }
 
-    private Expr factor() {
-        return parseLeftAssocBinary(this::unary, STAR, SLASH);
+    private Expr unary() {
+        Token operator = previous();
+        Expr right = parsePrecedence(Precedence.UNARY);
+        return new Expr.Unary(operator, right);
     }
 
-    private Expr unary() {
-        if (match(BANG, MINUS)) {
-            Token operator = previous();
-            Expr right = unary();
-            return new Expr.Unary(operator, right);
-        }
-        return funcExpr();
+    private Expr call(Expr callee) {
+        return finishCall(callee);
     }
 
-    private Expr call() {
-        Expr expr = primary();
-        while (true) {
-            if (match(LEFT_PAREN)) {
-                expr = finishCall(expr);
-            } else if (match(DOT)) {
-                Token name = consume(IDENTIFIER, "Expect identifier after dot.");
-                expr = new Expr.Get(expr, name);
-            } else {
-                break;
-            }
-        }
-        return expr;
+    private Expr dot(Expr object) {
+        Token name = consume(IDENTIFIER, "Expect identifier after dot.");
+        return new Expr.Get(object, name);
     }
 
     private Expr funcExpr() {
-
-        if (!match(FUN)) {
-            return call();
-        }
         consume(LEFT_PAREN, "Expect '(' after fun keyword.");
 
         List<Token> parameters = new ArrayList<>();
@@ -403,75 +529,34 @@ public class Parser {
         return new Expr.Call(callee, paren, arguments);
     }
 
-    private Expr primary() {
-        if (match(TRUE)) return new Expr.Literal(true);
-        if (match(FALSE)) return new Expr.Literal(false);
-        if (match(NIL)) return new Expr.Literal(null);
-
-        if (match(NUMBER, STRING)) {
-            return new Expr.Literal(previous().literal);
-        }
-
-        if (match(LEFT_PAREN)) {
-            Expr expr = expression();
-            consume(RIGHT_PAREN, "Expecting ')' after expression.");
-            return new Expr.Grouping(expr);
-        }
-
-        if (match(THIS)) {
-            return new Expr.This(previous());
-        }
-
-        if (match(SUPER)) {
-            Token keyword = previous();
-            consume(DOT, "Expect '.' after super");
-            return new Expr.Super(keyword, consume(IDENTIFIER, "Expect superclass method name after '.'"));
-        }
-
-        if (match(IDENTIFIER)) {
-            return new Expr.Variable(previous());
-        }
-
+    private Expr literal() {
+        return switch (previous().type) {
+            case TRUE -> new Expr.Literal(true);
+            case FALSE -> new Expr.Literal(false);
+            case NIL -> new Expr.Literal(null);
+            // NUMBER or STRING
+            default -> new Expr.Literal(previous().literal);
+        };
+    }
 
-        throw error(peek(), "Expecting expression.");
+    private Expr grouping() {
+        Expr expr = expression();
+        consume(RIGHT_PAREN, "Expecting ')' after expression.");
+        return new Expr.Grouping(expr);
     }
 
-    private interface IExpressionParser {
-        Expr parse();
+    private Expr thisExpr() {
+        return new Expr.This(previous());
     }
 
-    /**
-     * Parse a binary left associative rule defined as: original -> next ( ( op1 | op2 | ... ) next)*
-     *
-     * @param nextParser The "next" rule
-     * @param types      Operators to match
-     * @return An expression with any number of operators and next expansions
-     */
-    private Expr parseLeftAssocBinary(IExpressionParser nextParser, TokenType... types) {
-        Expr expr = nextParser.parse();
-        while (match(types)) {
-            Token operator = previous();
-            Expr right = nextParser.parse();
-            expr = new Expr.Binary(expr, operator, right);
-        }
-        return expr;
+    private Expr superExpr() {
+        Token keyword = previous();
+        consume(DOT, "Expect '.' after super");
+        return new Expr.Super(keyword, consume(IDENTIFIER, "Expect superclass method name after '.'"));
     }
 
-    /**
-     * Parse a logical left associative rule defined as: original -> next ( ( op1 | op2 | ... ) next)*
-     *
-     * @param nextParser The "next" rule
-     * @param types      Operators to match
-     * @return An expression with any number of operators and next expansions
-     */
-    private Expr parseLeftAssocLogical(IExpressionParser nextParser, TokenType... types) {
-        Expr expr = nextParser.parse();
-        while (match(types)) {
-            Token operator = previous();
-            Expr right = nextParser.parse();
-            expr = new Expr.Logical(expr, operator, right);
-        }
-        return expr;
+    private Expr variable() {
+        return new Expr.Variable(previous());
     }
 
     /**
@@ -505,17 +590,18 @@ public class Parser {
      * @return The current token
      */
     private Token peek() {
-        return tokens.get(current);
+        return current;
     }
 
     /**
      * @return The next token or null if at end of string
      */
     private Token peekNext() {
-        if (current + 1 >= tokens.size()) {
+        if (isAtEnd()) {
             return null;
         }
-        return tokens.get(current + 1);
+        if (next == null) next = tokens.nextToken();
+        return next;
     }
 
     /**
@@ -526,12 +612,16 @@ public class Parser {
     }
 
     /**
-     * Increments current by 1
+     * Moves on to the next token
      *
      * @return The token pre-increment
      */
     private Token advance() {
-        if (!isAtEnd()) current++;
+        if (!isAtEnd()) {
+            previous = current;
+            current = next != null ? next : tokens.nextToken();
+            next = null;
+        }
         return previous();
     }
 
@@ -539,7 +629,7 @@ public class Parser {
      * @return The previous token
      */
     private Token previous() {
-        return tokens.get(current - 1);
+        return previous;
     }
 
     private ParseError error(Token token, String message) {
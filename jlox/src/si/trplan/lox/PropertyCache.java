@@ -0,0 +1,52 @@
+package si.trplan.lox;
+
+/**
+ * Polymorphic inline cache of an Expr.Get or Expr.Set site. Each entry maps a receiver shape to what the lookup
+ * found for it. Since every class has its own root shape and shapes never change, an entry stays valid for as long
+ * as the program runs. Once a site has seen more than MAX_ENTRIES shapes it goes through the generic lookup.
+ */
+class PropertyCache {
+    private static final int MAX_ENTRIES = 4;
+
+    static final int METHOD = -1;
+    static final int GETTER = -2;
+
+    final Shape[] shapes = new Shape[MAX_ENTRIES];
+    // Field index, or METHOD/GETTER for entries of a Get site that resolve to the cached function
+    final int[] slots = new int[MAX_ENTRIES];
+    final LoxFunction[] functions = new LoxFunction[MAX_ENTRIES];
+    // Shape of the instance after a Set, which differs from the receiver's shape if the Set adds the field
+    final Shape[] transitions = new Shape[MAX_ENTRIES];
+    int count = 0;
+
+    /**
+     * @return The index of the entry for the shape or -1 on a cache miss
+     */
+    int lookup(Shape shape) {
+        for (int i = 0; i < count; i++) {
+            if (shapes[i] == shape) return i;
+        }
+        return -1;
+    }
+
+    void addField(Shape shape, int slot) {
+        add(shape, slot, null, shape);
+    }
+
+    void addFunction(Shape shape, int kind, LoxFunction function) {
+        add(shape, kind, function, shape);
+    }
+
+    void addTransition(Shape shape, int slot, Shape transition) {
+        add(shape, slot, null, transition);
+    }
+
+    private void add(Shape shape, int slot, LoxFunction function, Shape transition) {
+        if (count == MAX_ENTRIES) return;
+        shapes[count] = shape;
+        slots[count] = slot;
+        functions[count] = function;
+        transitions[count] = transition;
+        count++;
+    }
+}
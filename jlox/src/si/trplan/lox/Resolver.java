@@ -1,26 +1,44 @@
 package si.trplan.lox;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
-import java.util.Stack;
 
 public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
-    private final Interpreter interpreter;
-
-    private final Stack<Map<String, VariableState>> scopes = new Stack<>();
+    // Every local currently in scope, innermost last. The records are reused once their scope ends, so after the
+    // arrays have grown to the deepest nesting in the program resolving barely allocates.
+    private Local[] locals = new Local[16];
+    private int localCount = 0;
+    // Index into locals of the first variable of each open scope
+    private int[] scopeStarts = new int[8];
+    private int scopeCount = 0;
+    // The innermost local with each name indexed by its symbol id, which links to the one it shadows. Names are
+    // looked up by id instead of hashing the lexeme, which works because a program's tokens share one SymbolTable.
+    private Local[] visible = new Local[64];
+    // Unused locals found since the last reportUnused(), null if that check is off
+    private final List<Token> unused;
+
+    Resolver() {
+        this(true);
+    }
+
+    /**
+     * @param checkUnused Whether to collect unused locals for reportUnused()
+     */
+    Resolver(boolean checkUnused) {
+        this.unused = checkUnused ? new ArrayList<>() : null;
+    }
 
     private void beginScope() {
-        scopes.push(new HashMap<String, VariableState>());
+        if (scopeCount == scopeStarts.length) {
+            scopeStarts = Arrays.copyOf(scopeStarts, scopeCount * 2);
+        }
+        scopeStarts[scopeCount++] = localCount;
     }
 
     private FunctionType currentFunction = FunctionType.NONE;
     private boolean inWhileLoop = false;
 
-    Resolver(Interpreter interpreter) {
-        this.interpreter = interpreter;
-    }
-
     private enum FunctionType {
         NONE,
         FUNCTION,
@@ -46,43 +64,110 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         stmt.accept(this);
     }
 
-    private void resolve(Expr expr) {
+    void resolve(Expr expr) {
         expr.accept(this);
     }
 
     private void endScope() {
-        // Here we also check if any locals are unused
-        Map<String, VariableState> scope = scopes.pop();
-        for (VariableState state : scope.values()) {
-            if (!state.used) {
-                Lox.error(state.name.line, "The variable '" + state.name.lexeme + "' is never used.");
+        int start = scopeStarts[--scopeCount];
+        if (unused != null) {
+            for (int i = start; i < localCount; i++) {
+                if (!locals[i].used) unused.add(locals[i].name);
             }
         }
+        // Unwind in reverse so a name declared twice in this scope (an error) still ends up restored
+        for (int i = localCount - 1; i >= start; i--) {
+            Local local = locals[i];
+            visible[local.symbol] = local.shadowed;
+            local.name = null;
+            local.shadowed = null;
+        }
+        localCount = start;
+    }
+
+    /**
+     * Reports the unused locals found since the last call. This is kept apart from resolving so it can be turned off,
+     * and so those errors come after the ones that make a program invalid.
+     */
+    void reportUnused() {
+        if (unused == null) return;
+        for (Token name : unused) {
+            Lox.error(name.line, "The variable '" + name.lexeme + "' is never used.");
+        }
+        unused.clear();
     }
 
     private void declare(Token name) {
-        if (scopes.isEmpty()) return;
-        Map<String, VariableState> scope = scopes.peek();
-        if (scope.containsKey(name.lexeme)) {
+        if (scopeCount == 0) return;
+        Local previous = visible(name.symbol);
+        if (previous != null && previous.scope == scopeCount - 1) {
             Lox.error(name, "Redeclaring a variable in a local scope is not allowed (variable already" +
                     "exists.");
         }
-        scopes.peek().put(name.lexeme, new VariableState(name, false, false));
+        addLocal(name.symbol, name, false, false);
+    }
+
+    /**
+     * @return The innermost local with the name, null if it isn't a local
+     */
+    private Local visible(int symbol) {
+        return symbol < visible.length ? visible[symbol] : null;
+    }
+
+    /**
+     * Adds a variable to the innermost scope
+     */
+    private void addLocal(int symbol, Token name, boolean defined, boolean used) {
+        if (localCount == locals.length) {
+            locals = Arrays.copyOf(locals, localCount * 2);
+        }
+        Local local = locals[localCount];
+        if (local == null) {
+            local = new Local();
+            locals[localCount] = local;
+        }
+        local.symbol = symbol;
+        local.name = name;
+        local.defined = defined;
+        local.used = used;
+        local.scope = scopeCount - 1;
+        // Slots are handed out in declaration order, which is also the order the Interpreter defines them in
+        local.slot = localCount - scopeStarts[scopeCount - 1];
+        if (symbol >= visible.length) {
+            visible = Arrays.copyOf(visible, Math.max(visible.length * 2, symbol + 1));
+        }
+        local.shadowed = visible[symbol];
+        visible[symbol] = local;
+        localCount++;
     }
 
     private void define(Token name) {
-        if (scopes.isEmpty()) return;
-        scopes.peek().put(name.lexeme, new VariableState(name, true, false));
+        if (scopeCount == 0) return;
+        visible[name.symbol].defined = true;
     }
 
     private void resolveLocal(Expr expr, Token name, boolean use) {
-        for (int i = scopes.size() - 1; i >= 0; i--) {
-            if (scopes.get(i).containsKey(name.lexeme)) {
-                interpreter.resolve(expr, scopes.size() - 1 - i);
-                VariableState state = scopes.get(i).get(name.lexeme);
-                scopes.get(i).put(name.lexeme, new VariableState(state.name, state.defined, state.used || use));
-                return;
-            }
+        Local local = visible(name.symbol);
+        if (local == null) return;
+        storeLocation(expr, scopeCount - 1 - local.scope, local.slot);
+        if (use) local.used = true;
+    }
+
+    /**
+     * Writes the resolved location straight into the node so the Interpreter doesn't have to look it up
+     */
+    private void storeLocation(Expr expr, int depth, int slot) {
+        if (expr instanceof Expr.Variable variable) {
+            variable.depth = depth;
+            variable.slot = slot;
+        } else if (expr instanceof Expr.Assign assign) {
+            assign.depth = depth;
+            assign.slot = slot;
+        } else if (expr instanceof Expr.This thisExpr) {
+            thisExpr.depth = depth;
+            thisExpr.slot = slot;
+        } else if (expr instanceof Expr.Super superExpr) {
+            superExpr.depth = depth;
         }
     }
 
@@ -94,15 +179,44 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     }
 
     private void resolveFunction(Stmt.Function function, FunctionType type) {
+        if (function.body instanceof LazyBody body && !body.isParsed()) {
+            // Pre-parsed bodies are only top-level functions and methods of top-level classes, so the only
+            // surroundings to remember are the class and its "super" scope
+            ClassType enclosingClass = currentClass;
+            boolean checkUnused = unused != null;
+            body.resolveWith(statements -> {
+                Resolver resolver = new Resolver(checkUnused);
+                resolver.currentClass = enclosingClass;
+                if (enclosingClass == ClassType.SUBCLASS) {
+                    resolver.beginScope();
+                    resolver.addLocal(SymbolTable.SUPER_SYMBOL, null, true, true);
+                }
+                resolver.resolveFunction(function.params, statements, type);
+                resolver.reportUnused();
+            });
+            return;
+        }
+        resolveFunction(function.params, function.body, type);
+    }
+
+    private void resolveFunction(List<Token> params, List<Stmt> body, FunctionType type) {
         FunctionType enclosingFunction = currentFunction;
         currentFunction = type;
+        // A break can't jump out of the function to a loop around its declaration
+        boolean enclosingWhile = inWhileLoop;
+        inWhileLoop = false;
         beginScope();
-        for (Token param : function.params) {
+        // Methods get the receiver in the first slot of their own frame
+        if (type == FunctionType.METHOD || type == FunctionType.INITIALIZER) {
+            addLocal(SymbolTable.THIS_SYMBOL, null, true, true);
+        }
+        for (Token param : params) {
             declare(param);
             define(param);
         }
-        resolve(function.body);
+        resolve(body);
         endScope();
+        inWhileLoop = enclosingWhile;
         currentFunction = enclosingFunction;
     }
 
@@ -123,18 +237,15 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         define(stmt.name);
 
         if (stmt.superclass != null) {
-            if(stmt.name.lexeme.equals(stmt.superclass.name.lexeme)) {
+            if(stmt.name.symbol == stmt.superclass.name.symbol) {
                 Lox.error(stmt.superclass.name, "A class can't inherit from itself.");
             }
             resolve(stmt.superclass);
             beginScope();
-            scopes.peek().put("super", new VariableState(null, true, true));
+            addLocal(SymbolTable.SUPER_SYMBOL, null, true, true);
             currentClass = ClassType.SUBCLASS;
         }
 
-        beginScope();
-        scopes.peek().put("this", new VariableState(null, true, true));
-
         for (Stmt.Function method : stmt.methods) {
             FunctionType declaration = FunctionType.METHOD;
             if (method.name.lexeme.equals("init")) declaration = FunctionType.INITIALIZER;
@@ -146,8 +257,6 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
             resolveFunction(getter, declaration);
         }
 
-        endScope();
-        
         if(stmt.superclass != null) {
             endScope();
         }
@@ -167,7 +276,8 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitFunctionExpr(Expr.Function expr) {
-        resolve(new Stmt.Function(null, expr.params, expr.body));
+        // Anonymous functions don't declare a name, so they must not take up a slot in the enclosing scope
+        resolveFunction(new Stmt.Function(null, expr.params, expr.body), FunctionType.FUNCTION);
         return null;
     }
 
@@ -183,8 +293,8 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitVariableExpr(Expr.Variable expr) {
-        if (!scopes.empty() && scopes.peek().containsKey(expr.name.lexeme) &&
-                !scopes.peek().get(expr.name.lexeme).defined) {
+        Local local = visible(expr.name.symbol);
+        if (local != null && local.scope == scopeCount - 1 && !local.defined) {
             Lox.error(expr.name, "Can't read local variable in its own initializer.");
         }
 
@@ -212,9 +322,18 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
             return null;
         }
         resolveLocal(expr, expr.keyword, false);
+        expr.thisDepth = depthOf(SymbolTable.THIS_SYMBOL);
         return null;
     }
 
+    /**
+     * @return How many scopes up the innermost variable with this name is declared, -1 if it's not a local
+     */
+    private int depthOf(int symbol) {
+        Local local = visible(symbol);
+        return local != null ? scopeCount - 1 - local.scope : -1;
+    }
+
     @Override
     public Void visitThisExpr(Expr.This expr) {
         if (currentClass == ClassType.NONE) {
@@ -225,16 +344,20 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         return null;
     }
 
-    private class VariableState {
-        boolean defined = false;
-        boolean used = false;
+    /**
+     * A local variable, mutable so that resolving a use or its definition doesn't allocate
+     */
+    private static class Local {
+        int symbol;
+        // Null for the implicit "this" and "super"
         Token name;
-
-        VariableState(Token name, boolean defined, boolean used) {
-            this.name = name;
-            this.defined = defined;
-            this.used = used;
-        }
+        boolean defined;
+        boolean used;
+        // Index of the scope it's declared in, counted from the outermost one
+        int scope;
+        int slot;
+        // Visible local with the same name from an enclosing scope
+        Local shadowed;
     }
 
 
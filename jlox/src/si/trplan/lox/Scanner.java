@@ -1,74 +1,174 @@
 package si.trplan.lox;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.EnumMap;
 import java.util.List;
 import java.util.Map;
 
 import static si.trplan.lox.TokenType.*;
 
 
-public class Scanner {
-    private static final Map<String, TokenType> keywords;
+public class Scanner implements TokenSource {
+    // Lexemes of the tokens that are always spelled the same, shared by all of their tokens
+    private static final Map<TokenType, String> punctuation;
 
     static {
-        keywords = new HashMap<>();
-        keywords.put("and", AND);
-        keywords.put("class", CLASS);
-        keywords.put("else", ELSE);
-        keywords.put("false", FALSE);
-        keywords.put("for", FOR);
-        keywords.put("fun", FUN);
-        keywords.put("if", IF);
-        keywords.put("nil", NIL);
-        keywords.put("or", OR);
-        keywords.put("print", PRINT);
-        keywords.put("return", RETURN);
-        keywords.put("super", SUPER);
-        keywords.put("this", THIS);
-        keywords.put("true", TRUE);
-        keywords.put("var", VAR);
-        keywords.put("while", WHILE);
-        keywords.put("break", BREAK);
-    }
-
-    private final String source;
-    private final List<Token> tokens = new ArrayList<>();
+        punctuation = new EnumMap<>(TokenType.class);
+        punctuation.put(LEFT_PAREN, "(");
+        punctuation.put(RIGHT_PAREN, ")");
+        punctuation.put(LEFT_BRACE, "{");
+        punctuation.put(RIGHT_BRACE, "}");
+        punctuation.put(COMMA, ",");
+        punctuation.put(DOT, ".");
+        punctuation.put(MINUS, "-");
+        punctuation.put(PLUS, "+");
+        punctuation.put(SEMICOLON, ";");
+        punctuation.put(SLASH, "/");
+        punctuation.put(STAR, "*");
+        punctuation.put(BANG, "!");
+        punctuation.put(BANG_EQUAL, "!=");
+        punctuation.put(EQUAL, "=");
+        punctuation.put(EQUAL_EQUAL, "==");
+        punctuation.put(GREATER, ">");
+        punctuation.put(GREATER_EQUAL, ">=");
+        punctuation.put(LESS, "<");
+        punctuation.put(LESS_EQUAL, "<=");
+    }
+
+    // UTF-8 encoded source, possibly a file mapped straight into memory. Outside of string literals and comments
+    // Lox is pure ASCII so the scanner works on bytes and only decodes the lexemes it keeps.
+    private final ByteBuffer source;
+    private final int length;
+    private final SymbolTable symbols;
+    // Type of the token found by the last call to scanToken(), null if it only skipped whitespace or a comment.
+    // The token itself is source[start, current).
+    private TokenType scanned = null;
+    // Its interned lexeme if it's an identifier or keyword, -1 otherwise
+    private int scannedSymbol = -1;
 
     private int start = 0;
     private int current = 0;
     private int line = 1;
 
     Scanner(String source) {
+        this(source, new SymbolTable());
+    }
+
+    /**
+     * @param symbols Table to intern lexemes into, can be shared between scanners (e.g. REPL lines)
+     */
+    Scanner(String source, SymbolTable symbols) {
+        this(ByteBuffer.wrap(source.getBytes(StandardCharsets.UTF_8)), symbols);
+    }
+
+    /**
+     * @param source UTF-8 encoded source, only read with absolute gets so its position is left alone
+     */
+    Scanner(ByteBuffer source) {
+        this(source, new SymbolTable());
+    }
+
+    Scanner(ByteBuffer source, SymbolTable symbols) {
         this.source = source;
+        this.length = source.limit();
+        this.symbols = symbols;
     }
 
-    List<Token> scanTokens() {
-        while (!isAtEnd()) {
+    /**
+     * Scans just enough of the source to produce the next token
+     */
+    @Override
+    public Token nextToken() {
+        if (!scanNext()) return new Token(EOF, "", null, line);
+
+        if (scanned == STRING) {
+            // String literals are rarely repeated, so we don't intern them
+            String value = stringValue(source, start, current);
+            return new Token(STRING, "\"" + value + "\"", value, line);
+        }
+        String lexeme = scannedSymbol != -1 ? symbols.name(scannedSymbol) : lexeme(source, start, current, scanned);
+        Object literal = scanned == NUMBER ? Double.parseDouble(lexeme) : null;
+        return new Token(scanned, lexeme, literal, line, scannedSymbol);
+    }
+
+    /**
+     * Scans the whole source into a compact buffer, without creating any Token objects
+     */
+    TokenBuffer scanBuffer() {
+        TokenBuffer tokens = new TokenBuffer(source, symbols);
+        while (scanNext()) {
+            tokens.add(scanned, start, current - start, line, scannedSymbol);
+        }
+        tokens.add(EOF, current, 0, line, -1);
+        return tokens;
+    }
+
+    /**
+     * Advances to the next token
+     *
+     * @return False if the end of the source was reached first
+     */
+    private boolean scanNext() {
+        scanned = null;
+        while (scanned == null) {
+            if (isAtEnd()) return false;
             start = current;
             scanToken();
         }
+        return true;
+    }
+
+    /**
+     * @return The interned value of the string literal at source[start, end), quotes included
+     */
+    static String stringValue(ByteBuffer source, int start, int end) {
+        return StandardCharsets.UTF_8.decode(source.slice(start + 1, end - start - 2)).toString().intern();
+    }
 
-        tokens.add(new Token(EOF, "", null, line));
+    /**
+     * @return The lexeme of a number or punctuation token at source[start, end), the ones that aren't interned
+     */
+    static String lexeme(ByteBuffer source, int start, int end, TokenType type) {
+        if (type != NUMBER) return punctuation.get(type);
+        byte[] digits = new byte[end - start];
+        source.get(start, digits);
+        return new String(digits, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Scans the whole source at once
+     */
+    List<Token> scanTokens() {
+        List<Token> tokens = new ArrayList<>();
+        Token token;
+        do {
+            token = nextToken();
+            tokens.add(token);
+        } while (token.type != EOF);
         return tokens;
     }
 
     private boolean isAtEnd() {
-        return current >= source.length();
+        return current >= length;
     }
 
     private char advance() {
-        return source.charAt(current++);
+        return charAt(current++);
     }
 
-    private void addToken(TokenType type) {
-        addToken(type, null);
+    /**
+     * @return The byte at index as a char, bytes of multibyte UTF-8 sequences all end up above 0x7f
+     */
+    private char charAt(int index) {
+        return (char) (source.get(index) & 0xff);
     }
 
-    private void addToken(TokenType type, Object literal) {
+    private void addToken(TokenType type) {
         // The ending index is exclusive -- this is our lexeme
-        String text = source.substring(start, current);
-        tokens.add(new Token(type, text, literal, line));
+        scanned = type;
+        scannedSymbol = -1;
     }
 
     private void scanToken() {
@@ -110,6 +210,8 @@ public class Scanner {
                 } else if (isAlpha(c)) {
                     identifier();
                 } else {
+                    // Skip the rest of a multibyte character so it is reported once
+                    while (!isAtEnd() && (peek() & 0xc0) == 0x80) advance();
                     Lox.error(line, "Unexpected character.");
                 }
             }
@@ -121,11 +223,10 @@ public class Scanner {
      */
     private void identifier() {
         while (isAlphaNumeric(peek())) advance();
-        String text = source.substring(start, current);
-        // Match a keyword
-        TokenType type = keywords.get(text);
-        if (type == null) type = IDENTIFIER;
-        addToken(type);
+        int symbol = symbols.intern(source, start, current);
+        // Keywords are the first symbols of every table
+        scanned = symbol < SymbolTable.KEYWORDS.length ? SymbolTable.KEYWORDS[symbol] : IDENTIFIER;
+        scannedSymbol = symbol;
     }
 
     /**
@@ -142,7 +243,8 @@ public class Scanner {
             while (isDigit(peek())) advance();
         }
 
-        addToken(NUMBER, Double.parseDouble(source.substring(start, current)));
+        // The value is only parsed once a Token is made
+        addToken(NUMBER);
     }
 
     /**
@@ -163,8 +265,9 @@ public class Scanner {
         // The closing "
         advance();
 
-        String value = source.substring(start + 1, current - 1);
-        addToken(STRING, value);
+        // The value is only decoded once a Token is made
+        scanned = STRING;
+        scannedSymbol = -1;
     }
 
     /**
@@ -172,19 +275,19 @@ public class Scanner {
      */
     private boolean match(char expected) {
         if (isAtEnd()) return false;
-        if (source.charAt(current) != expected) return false;
+        if (charAt(current) != expected) return false;
         current++;
         return true;
     }
 
     private char peek() {
         if (isAtEnd()) return '\0';
-        return source.charAt(current);
+        return charAt(current);
     }
 
     private char peekNext() {
-        if (current + 1 >= source.length()) return '\0';
-        return source.charAt(current + 1);
+        if (current + 1 >= length) return '\0';
+        return charAt(current + 1);
     }
 
     private boolean isAlpha(char c) {
@@ -0,0 +1,48 @@
+package si.trplan.lox;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The layout of an instance's fields, also known as a hidden class. Instances of a class start out with the
+ * class's empty root shape and move along the transition tree as fields are added, so instances that get their
+ * fields in the same order share shapes. A shape never changes, which lets property sites cache lookups per shape.
+ */
+class Shape {
+    // Field name -> index into the instance's field array
+    private final Map<String, Integer> slots;
+    private final Map<String, Shape> transitions = new HashMap<>();
+
+    Shape() {
+        slots = new HashMap<>();
+    }
+
+    private Shape(Shape parent, String field) {
+        slots = new HashMap<>(parent.slots);
+        slots.put(field, parent.size());
+    }
+
+    /**
+     * @return The index of the field or -1 if instances of this shape don't have it
+     */
+    int slotOf(String name) {
+        Integer slot = slots.get(name);
+        return slot == null ? -1 : slot;
+    }
+
+    int size() {
+        return slots.size();
+    }
+
+    /**
+     * @return The shape of an instance of this shape after adding the field
+     */
+    Shape withField(String name) {
+        Shape next = transitions.get(name);
+        if (next == null) {
+            next = new Shape(this, name);
+            transitions.put(name, next);
+        }
+        return next;
+    }
+}
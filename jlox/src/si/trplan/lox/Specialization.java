@@ -0,0 +1,18 @@
+package si.trplan.lox;
+
+/**
+ * The operand types a node has observed so far. Nodes start out UNINITIALIZED, specialize on the types of their
+ * first evaluation and fall back to GENERIC for good the first time the types don't match.
+ */
+enum Specialization {
+    UNINITIALIZED,
+    NUMBERS,
+    STRINGS,
+    GENERIC;
+
+    static Specialization of(Object left, Object right) {
+        if (left instanceof Double && right instanceof Double) return NUMBERS;
+        if (Interpreter.isString(left) && Interpreter.isString(right)) return STRINGS;
+        return GENERIC;
+    }
+}
@@ -0,0 +1,112 @@
+package si.trplan.lox;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static si.trplan.lox.TokenType.*;
+
+/**
+ * Interns the identifiers and keywords the Scanner produces, so every occurrence of a name shares one String whose
+ * hash is computed only once, and gets a small integer id the Resolver indexes its scopes by. Like clox's table.c it
+ * is an open addressing hash table with linear probing, and it looks lexemes up directly in the source bytes so a
+ * repeated name doesn't allocate.
+ */
+class SymbolTable {
+    private static final double MAX_LOAD = 0.75;
+
+    // Every table starts out with the keywords in this order, so the id of a keyword is its index here
+    static final TokenType[] KEYWORDS = {
+            AND, CLASS, ELSE, FALSE, FOR, FUN, IF, NIL, OR, PRINT, RETURN, SUPER, THIS, TRUE, VAR, WHILE, BREAK
+    };
+    // Ids of the implicit locals the Resolver declares
+    static final int SUPER_SYMBOL = Arrays.asList(KEYWORDS).indexOf(SUPER);
+    static final int THIS_SYMBOL = Arrays.asList(KEYWORDS).indexOf(THIS);
+
+    // Hash table of symbol ids, -1 marks an empty bucket
+    private int[] buckets = new int[64];
+    // Symbol id -> interned lexeme
+    private String[] symbols = new String[32];
+    private int count = 0;
+
+    SymbolTable() {
+        Arrays.fill(buckets, -1);
+        for (TokenType keyword : KEYWORDS) {
+            byte[] lexeme = keyword.name().toLowerCase().getBytes(StandardCharsets.US_ASCII);
+            intern(ByteBuffer.wrap(lexeme), 0, lexeme.length);
+        }
+    }
+
+    /**
+     * @return The id of the lexeme source[start, end), which must be ASCII
+     */
+    int intern(ByteBuffer source, int start, int end) {
+        int length = end - start;
+        // Same hash as String.hashCode(), which the interned strings have cached
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + source.get(i);
+        }
+
+        int mask = buckets.length - 1;
+        int index = spread(hash) & mask;
+        while (buckets[index] != -1) {
+            String symbol = symbols[buckets[index]];
+            if (symbol.hashCode() == hash && symbol.length() == length && matches(source, start, symbol)) {
+                return buckets[index];
+            }
+            index = (index + 1) & mask;
+        }
+
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = (char) source.get(start + i);
+        }
+        String symbol = new String(chars);
+        symbol.hashCode();
+        if (count == symbols.length) {
+            symbols = Arrays.copyOf(symbols, count * 2);
+        }
+        symbols[count] = symbol;
+        buckets[index] = count;
+        count++;
+
+        if (count > buckets.length * MAX_LOAD) grow();
+        return count - 1;
+    }
+
+    /**
+     * @return The interned lexeme of the symbol
+     */
+    String name(int id) {
+        return symbols[id];
+    }
+
+    int size() {
+        return count;
+    }
+
+    private void grow() {
+        buckets = new int[buckets.length * 2];
+        Arrays.fill(buckets, -1);
+        int mask = buckets.length - 1;
+        for (int id = 0; id < count; id++) {
+            int index = spread(symbols[id].hashCode()) & mask;
+            while (buckets[index] != -1) {
+                index = (index + 1) & mask;
+            }
+            buckets[index] = id;
+        }
+    }
+
+    private static boolean matches(ByteBuffer source, int start, String symbol) {
+        for (int i = 0; i < symbol.length(); i++) {
+            if (source.get(start + i) != symbol.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -8,12 +8,19 @@ public class Token {
     final Object literal;
     // For error handling
     final int line;
+    // Id of the interned lexeme in the Scanner's SymbolTable for identifiers and keywords, -1 for other tokens
+    final int symbol;
     
     Token(TokenType type, String lexeme, Object literal, int line) {
+        this(type, lexeme, literal, line, -1);
+    }
+
+    Token(TokenType type, String lexeme, Object literal, int line, int symbol) {
         this.type = type;
         this.lexeme = lexeme;
         this.literal = literal;
         this.line = line;
+        this.symbol = symbol;
     }
     
     public String toString() {
@@ -0,0 +1,117 @@
+package si.trplan.lox;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * All the tokens of a source, stored as parallel arrays instead of Token objects: about 17 bytes per token and
+ * no lexeme copies, since lexemes are either interned or still sitting in the source. Tokens are only made (and
+ * their literals decoded) when something asks for one, e.g. the Parser pulling from a cursor().
+ */
+class TokenBuffer {
+    private static final TokenType[] TYPES = TokenType.values();
+
+    private final ByteBuffer source;
+    private final SymbolTable symbolTable;
+
+    private byte[] types = new byte[64];
+    // Byte offset and length of the lexeme in the source
+    private int[] starts = new int[64];
+    private int[] lengths = new int[64];
+    private int[] lines = new int[64];
+    // Interned lexeme of identifiers and keywords, -1 for everything else
+    private int[] symbols = new int[64];
+    private int count = 0;
+
+    TokenBuffer(ByteBuffer source, SymbolTable symbolTable) {
+        this.source = source;
+        this.symbolTable = symbolTable;
+    }
+
+    void add(TokenType type, int start, int length, int line, int symbol) {
+        if (count == types.length) {
+            int capacity = count * 2;
+            types = Arrays.copyOf(types, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            lines = Arrays.copyOf(lines, capacity);
+            symbols = Arrays.copyOf(symbols, capacity);
+        }
+        types[count] = (byte) type.ordinal();
+        starts[count] = start;
+        lengths[count] = length;
+        lines[count] = line;
+        symbols[count] = symbol;
+        count++;
+    }
+
+    int size() {
+        return count;
+    }
+
+    TokenType type(int index) {
+        return TYPES[types[index]];
+    }
+
+    int start(int index) {
+        return starts[index];
+    }
+
+    int length(int index) {
+        return lengths[index];
+    }
+
+    int line(int index) {
+        return lines[index];
+    }
+
+    /**
+     * @return A new Token for the token at index, equal to the one the Scanner would have streamed
+     */
+    Token get(int index) {
+        TokenType type = type(index);
+        switch (type) {
+            case EOF:
+                return new Token(TokenType.EOF, "", null, lines[index]);
+            case STRING: {
+                String value = Scanner.stringValue(source, starts[index], starts[index] + lengths[index]);
+                return new Token(TokenType.STRING, "\"" + value + "\"", value, lines[index]);
+            }
+            default: {
+                String lexeme = symbols[index] != -1 ? symbolTable.name(symbols[index]) :
+                        Scanner.lexeme(source, starts[index], starts[index] + lengths[index], type);
+                Object literal = type == TokenType.NUMBER ? Double.parseDouble(lexeme) : null;
+                return new Token(type, lexeme, literal, lines[index], symbols[index]);
+            }
+        }
+    }
+
+    /**
+     * @return A source of the tokens starting at index, which keeps returning the EOF token once it gets there
+     */
+    Cursor cursor(int index) {
+        return new Cursor(index);
+    }
+
+    class Cursor implements TokenSource {
+        private int next;
+
+        Cursor(int next) {
+            this.next = next;
+        }
+
+        /**
+         * @return Index of the token the next call returns
+         */
+        int position() {
+            return next;
+        }
+
+        @Override
+        public Token nextToken() {
+            Token token = get(next);
+            if (next < count - 1) next++;
+            return token;
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package si.trplan.lox;
+
+/**
+ * Something the Parser can pull tokens from one at a time.
+ */
+interface TokenSource {
+    /**
+     * @return The next token, or an EOF token once the input is exhausted
+     */
+    Token nextToken();
+}
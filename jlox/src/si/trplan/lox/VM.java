@@ -0,0 +1,462 @@
+package si.trplan.lox;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Stack based bytecode virtual machine, an alternative to the tree-walking Interpreter. The design follows clox's
+ * vm.c: every call pushes a CallFrame whose slots are a window into a single value stack.
+ */
+class VM {
+    private static final int FRAMES_MAX = 1024;
+    private static final int STACK_MAX = FRAMES_MAX * 256;
+
+    private static class CallFrame {
+        Obj.Closure closure;
+        int ip;
+        // Index of the frame's slot 0 on the stack
+        int slots;
+    }
+
+    @SuppressWarnings("serial")
+    private static class VMError extends RuntimeException {
+        VMError(String message) {
+            super(message, null, false, false);
+        }
+    }
+
+    private final Object[] stack = new Object[STACK_MAX];
+    private int stackTop = 0;
+    private final CallFrame[] frames = new CallFrame[FRAMES_MAX];
+    private int frameCount = 0;
+    private final Map<String, Object> globals = new HashMap<>();
+    // Open upvalues sorted by stack location, highest first
+    private Obj.Upvalue openUpvalues = null;
+    // Where print statements go
+    private final Output output;
+
+    VM(Output output) {
+        this.output = output;
+        for (int i = 0; i < FRAMES_MAX; i++) {
+            frames[i] = new CallFrame();
+        }
+
+        for (Natives.Native fn : Natives.ALL) {
+            globals.put(fn.name(), new Obj.Native(fn.arity(), fn.body()));
+        }
+    }
+
+    void interpret(List<Stmt> statements) {
+        Obj.Function function = new Compiler().compile(statements);
+        if (function == null) return;
+        execute(function);
+    }
+
+    String interpretExpression(Expr expr) {
+        Obj.Function function = new Compiler().compileExpression(expr);
+        if (function == null) return null;
+        return execute(function);
+    }
+
+    /**
+     * @return The stringified value the script returned or null if there was a runtime error
+     */
+    private String execute(Obj.Function function) {
+        Obj.Closure closure = new Obj.Closure(function);
+        push(closure);
+        call(closure, 0);
+        try {
+            return Interpreter.stringify(run());
+        } catch (VMError error) {
+            resetStack();
+            return null;
+        }
+    }
+
+    private void resetStack() {
+        Arrays.fill(stack, 0, stackTop, null);
+        stackTop = 0;
+        frameCount = 0;
+        openUpvalues = null;
+    }
+
+    private void push(Object value) {
+        stack[stackTop++] = value;
+    }
+
+    private Object pop() {
+        Object value = stack[--stackTop];
+        stack[stackTop] = null;
+        return value;
+    }
+
+    private Object peek(int distance) {
+        return stack[stackTop - 1 - distance];
+    }
+
+    private static VMError error(String message) {
+        return new VMError(message);
+    }
+
+    private static int readShort(byte[] code, int ip) {
+        return ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+    }
+
+    private void call(Obj.Closure closure, int argCount) {
+        if (argCount != closure.function.arity) {
+            throw error(String.format("Expecting %d arguments but got %d arguments.",
+                    closure.function.arity, argCount));
+        }
+        if (frameCount == FRAMES_MAX) {
+            throw error("Stack overflow.");
+        }
+
+        CallFrame frame = frames[frameCount++];
+        frame.closure = closure;
+        frame.ip = 0;
+        frame.slots = stackTop - argCount - 1;
+    }
+
+    private void callValue(Object callee, int argCount) {
+        if (callee instanceof Obj.Closure closure) {
+            call(closure, argCount);
+        } else if (callee instanceof Obj.BoundMethod bound) {
+            stack[stackTop - argCount - 1] = bound.receiver;
+            call(bound.method, argCount);
+        } else if (callee instanceof Obj.Class klass) {
+            stack[stackTop - argCount - 1] = new Obj.Instance(klass);
+            if (klass.initializer != null) {
+                call(klass.initializer, argCount);
+            } else if (argCount != 0) {
+                throw error(String.format("Expecting %d arguments but got %d arguments.", 0, argCount));
+            }
+        } else if (callee instanceof Obj.Native nativeFn) {
+            if (argCount != nativeFn.arity) {
+                throw error(String.format("Expecting %d arguments but got %d arguments.",
+                        nativeFn.arity, argCount));
+            }
+            Object[] arguments = Arrays.copyOfRange(stack, stackTop - argCount, stackTop);
+            Object result;
+            try {
+                result = nativeFn.function.call(Arrays.asList(arguments));
+            } catch (NativeError error) {
+                throw error(error.getMessage());
+            }
+            Arrays.fill(stack, stackTop - argCount - 1, stackTop, null);
+            stackTop -= argCount + 1;
+            push(result);
+        } else {
+            throw error("Can only call functions and classes.");
+        }
+    }
+
+    private Obj.Upvalue captureUpvalue(int location) {
+        Obj.Upvalue previous = null;
+        Obj.Upvalue upvalue = openUpvalues;
+        while (upvalue != null && upvalue.location > location) {
+            previous = upvalue;
+            upvalue = upvalue.next;
+        }
+
+        if (upvalue != null && upvalue.location == location) return upvalue;
+
+        Obj.Upvalue created = new Obj.Upvalue(location);
+        created.next = upvalue;
+        if (previous == null) {
+            openUpvalues = created;
+        } else {
+            previous.next = created;
+        }
+        return created;
+    }
+
+    /**
+     * Closes every open upvalue that points at or above the given stack slot
+     */
+    private void closeUpvalues(int last) {
+        while (openUpvalues != null && openUpvalues.location >= last) {
+            Obj.Upvalue upvalue = openUpvalues;
+            upvalue.closed = stack[upvalue.location];
+            upvalue.location = -1;
+            openUpvalues = upvalue.next;
+        }
+    }
+
+    private static void checkNumberOperands(Object left, Object right) {
+        if (left instanceof Double && right instanceof Double) return;
+        throw error("Operand must be number.");
+    }
+
+    private Object run() {
+        CallFrame frame = frames[frameCount - 1];
+        byte[] code = frame.closure.function.chunk.code;
+        Object[] constants = frame.closure.function.chunk.constants;
+        int ip = frame.ip;
+        int slots = frame.slots;
+
+        try {
+            for (; ; ) {
+                switch (code[ip++]) {
+                    case OpCode.CONSTANT -> {
+                        push(constants[readShort(code, ip)]);
+                        ip += 2;
+                    }
+                    case OpCode.NIL -> push(null);
+                    case OpCode.TRUE -> push(true);
+                    case OpCode.FALSE -> push(false);
+                    case OpCode.POP -> pop();
+                    case OpCode.GET_LOCAL -> push(stack[slots + (code[ip++] & 0xff)]);
+                    case OpCode.SET_LOCAL -> stack[slots + (code[ip++] & 0xff)] = peek(0);
+                    case OpCode.GET_GLOBAL -> {
+                        String name = (String) constants[readShort(code, ip)];
+                        ip += 2;
+                        Object value = globals.get(name);
+                        if (value == null && !globals.containsKey(name)) {
+                            throw error("Undefined variable '" + name + "'.");
+                        }
+                        if (value instanceof Environment.Unassigned) {
+                            throw error("Unassigned variable '" + name + "'");
+                        }
+                        push(value);
+                    }
+                    case OpCode.DEFINE_GLOBAL -> {
+                        String name = (String) constants[readShort(code, ip)];
+                        ip += 2;
+                        globals.put(name, pop());
+                    }
+                    case OpCode.SET_GLOBAL -> {
+                        String name = (String) constants[readShort(code, ip)];
+                        ip += 2;
+                        if (!globals.containsKey(name)) {
+                            throw error("Undefined variable '" + name + "'.");
+                        }
+                        globals.put(name, peek(0));
+                    }
+                    case OpCode.GET_UPVALUE -> {
+                        Obj.Upvalue upvalue = frame.closure.upvalues[code[ip++] & 0xff];
+                        push(upvalue.location != -1 ? stack[upvalue.location] : upvalue.closed);
+                    }
+                    case OpCode.SET_UPVALUE -> {
+                        Obj.Upvalue upvalue = frame.closure.upvalues[code[ip++] & 0xff];
+                        if (upvalue.location != -1) {
+                            stack[upvalue.location] = peek(0);
+                        } else {
+                            upvalue.closed = peek(0);
+                        }
+                    }
+                    case OpCode.GET_PROPERTY -> {
+                        String name = (String) constants[readShort(code, ip)];
+                        ip += 2;
+                        if (!(peek(0) instanceof Obj.Instance instance)) {
+                            throw error("Property access is allowed only on class instances.");
+                        }
+
+                        Object value = instance.fields.get(name);
+                        if (value != null || instance.fields.containsKey(name)) {
+                            stack[stackTop - 1] = value;
+                            break;
+                        }
+
+                        Obj.Closure getter = instance.klass.getters.get(name);
+                        if (getter != null) {
+                            // The instance is already in place to become the getter's receiver
+                            frame.ip = ip;
+                            call(getter, 0);
+                            frame = frames[frameCount - 1];
+                            code = frame.closure.function.chunk.code;
+                            constants = frame.closure.function.chunk.constants;
+                            ip = frame.ip;
+                            slots = frame.slots;
+                            break;
+                        }
+
+                        Obj.Closure method = instance.klass.methods.get(name);
+                        if (method == null) {
+                            throw error(String.format("Property '%s' is not defined in '%s;", name, instance));
+                        }
+                        stack[stackTop - 1] = new Obj.BoundMethod(instance, method);
+                    }
+                    case OpCode.SET_PROPERTY -> {
+                        String name = (String) constants[readShort(code, ip)];
+                        ip += 2;
+                        if (!(peek(1) instanceof Obj.Instance instance)) {
+                            throw error("Property setting is allowed only on class instances.");
+                        }
+
+                        Object value = pop();
+                        instance.fields.put(name, value);
+                        stack[stackTop - 1] = value;
+                    }
+                    case OpCode.GET_SUPER -> {
+                        String name = (String) constants[readShort(code, ip)];
+                        ip += 2;
+                        Obj.Class superclass = (Obj.Class) pop();
+                        Obj.Closure method = superclass.methods.get(name);
+                        if (method == null) {
+                            throw error("Undefined property '" + name + "'.");
+                        }
+                        stack[stackTop - 1] = new Obj.BoundMethod(peek(0), method);
+                    }
+                    case OpCode.EQUAL -> {
+                        Object b = pop();
+                        stack[stackTop - 1] = Interpreter.isEqual(peek(0), b);
+                    }
+                    case OpCode.NOT_EQUAL -> {
+                        Object b = pop();
+                        stack[stackTop - 1] = !Interpreter.isEqual(peek(0), b);
+                    }
+                    case OpCode.GREATER -> {
+                        Object b = pop();
+                        Object a = peek(0);
+                        checkNumberOperands(a, b);
+                        stack[stackTop - 1] = (double) a > (double) b;
+                    }
+                    case OpCode.GREATER_EQUAL -> {
+                        Object b = pop();
+                        Object a = peek(0);
+                        checkNumberOperands(a, b);
+                        stack[stackTop - 1] = (double) a >= (double) b;
+                    }
+                    case OpCode.LESS -> {
+                        Object b = pop();
+                        Object a = peek(0);
+                        checkNumberOperands(a, b);
+                        stack[stackTop - 1] = (double) a < (double) b;
+                    }
+                    case OpCode.LESS_EQUAL -> {
+                        Object b = pop();
+                        Object a = peek(0);
+                        checkNumberOperands(a, b);
+                        stack[stackTop - 1] = (double) a <= (double) b;
+                    }
+                    case OpCode.ADD -> {
+                        Object b = pop();
+                        Object a = peek(0);
+                        if (a instanceof Double && b instanceof Double) {
+                            stack[stackTop - 1] = (double) a + (double) b;
+                        } else if (Interpreter.isString(a) && Interpreter.isString(b)) {
+                            // Shares the Interpreter's append buffers, building a string in a loop stays linear
+                            stack[stackTop - 1] = ConcatString.concat(a, b);
+                        } else {
+                            throw error("Operand must be either two numbers or two strings.");
+                        }
+                    }
+                    case OpCode.SUBTRACT -> {
+                        Object b = pop();
+                        Object a = peek(0);
+                        checkNumberOperands(a, b);
+                        stack[stackTop - 1] = (double) a - (double) b;
+                    }
+                    case OpCode.MULTIPLY -> {
+                        Object b = pop();
+                        Object a = peek(0);
+                        checkNumberOperands(a, b);
+                        stack[stackTop - 1] = (double) a * (double) b;
+                    }
+                    case OpCode.DIVIDE -> {
+                        Object b = pop();
+                        Object a = peek(0);
+                        checkNumberOperands(a, b);
+                        if ((double) b == 0.0) {
+                            throw error("Division by zero.");
+                        }
+                        stack[stackTop - 1] = (double) a / (double) b;
+                    }
+                    case OpCode.NOT -> stack[stackTop - 1] = !Interpreter.isTruthy(peek(0));
+                    case OpCode.NEGATE -> {
+                        if (!(peek(0) instanceof Double)) {
+                            throw error("Operand must be number.");
+                        }
+                        stack[stackTop - 1] = -(double) peek(0);
+                    }
+                    case OpCode.PRINT -> output.println(pop());
+                    case OpCode.JUMP -> ip += readShort(code, ip) + 2;
+                    case OpCode.JUMP_IF_FALSE -> {
+                        int offset = readShort(code, ip);
+                        ip += 2;
+                        if (!Interpreter.isTruthy(peek(0))) ip += offset;
+                    }
+                    case OpCode.LOOP -> ip -= readShort(code, ip) - 2;
+                    case OpCode.CALL -> {
+                        int argCount = code[ip++] & 0xff;
+                        frame.ip = ip;
+                        callValue(peek(argCount), argCount);
+                        frame = frames[frameCount - 1];
+                        code = frame.closure.function.chunk.code;
+                        constants = frame.closure.function.chunk.constants;
+                        ip = frame.ip;
+                        slots = frame.slots;
+                    }
+                    case OpCode.CLOSURE -> {
+                        Obj.Function function = (Obj.Function) constants[readShort(code, ip)];
+                        ip += 2;
+                        Obj.Closure closure = new Obj.Closure(function);
+                        for (int i = 0; i < closure.upvalues.length; i++) {
+                            boolean isLocal = code[ip++] == 1;
+                            int index = code[ip++] & 0xff;
+                            if (isLocal) {
+                                closure.upvalues[i] = captureUpvalue(slots + index);
+                            } else {
+                                closure.upvalues[i] = frame.closure.upvalues[index];
+                            }
+                        }
+                        push(closure);
+                    }
+                    case OpCode.CLOSE_UPVALUE -> {
+                        closeUpvalues(stackTop - 1);
+                        pop();
+                    }
+                    case OpCode.RETURN -> {
+                        Object result = pop();
+                        closeUpvalues(slots);
+                        frameCount--;
+                        Arrays.fill(stack, slots, stackTop, null);
+                        stackTop = slots;
+                        if (frameCount == 0) {
+                            return result;
+                        }
+
+                        push(result);
+                        frame = frames[frameCount - 1];
+                        code = frame.closure.function.chunk.code;
+                        constants = frame.closure.function.chunk.constants;
+                        ip = frame.ip;
+                        slots = frame.slots;
+                    }
+                    case OpCode.CLASS -> {
+                        push(new Obj.Class((String) constants[readShort(code, ip)]));
+                        ip += 2;
+                    }
+                    case OpCode.INHERIT -> {
+                        if (!(peek(1) instanceof Obj.Class superclass)) {
+                            throw error("Superclass must be a class.");
+                        }
+                        Obj.Class subclass = (Obj.Class) pop();
+                        subclass.methods.putAll(superclass.methods);
+                        subclass.initializer = superclass.initializer;
+                    }
+                    case OpCode.METHOD -> {
+                        String name = (String) constants[readShort(code, ip)];
+                        ip += 2;
+                        Obj.Closure method = (Obj.Closure) pop();
+                        Obj.Class klass = (Obj.Class) peek(0);
+                        klass.methods.put(name, method);
+                        if (name.equals("init")) klass.initializer = method;
+                    }
+                    case OpCode.GETTER -> {
+                        String name = (String) constants[readShort(code, ip)];
+                        ip += 2;
+                        Obj.Closure getter = (Obj.Closure) pop();
+                        ((Obj.Class) peek(0)).getters.put(name, getter);
+                    }
+                    default -> throw new IllegalStateException("Unknown opcode " + code[ip - 1]);
+                }
+            }
+        } catch (VMError error) {
+            Lox.runtimeError(error.getMessage(), frame.closure.function.chunk.lines[ip - 1]);
+            throw error;
+        }
+    }
+}
@@ -2,8 +2,11 @@ package si.trplan.tool;
 
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Helper script to automate generating all the classes needed for the AST
@@ -16,23 +19,24 @@ public class GenerateAst {
         }
 
         String outputDir = args[0];
-        try {
-            defineAst(outputDir, "Expr", Arrays.asList(
-                    "Assign : Token name, Expr value",
-                    "Binary : Expr left, Token operator, Expr right",
+        Map<String, List<String>> asts = new LinkedHashMap<>();
+        asts.put("Expr", Arrays.asList(
+                    "Assign : Token name, Expr value, int depth = -1, int slot = -1",
+                    "Binary : Expr left, Token operator, Expr right, " +
+                            "Specialization specialization = Specialization.UNINITIALIZED",
                     "Logical : Expr left, Token operator, Expr right",
                     "Grouping : Expr expression",
                     "Call : Expr callee, Token paren, List<Expr> arguments",
                     "Literal : Object value",
                     "Unary : Token operator, Expr right",
-                    "Set : Expr object, Token name, Expr value",
-                    "Variable : Token name",
+                    "Set : Expr object, Token name, Expr value, PropertyCache cache = new PropertyCache()",
+                    "Variable : Token name, int depth = -1, int slot = -1",
                     "Function : List<Token> params, List<Stmt> body",
-                    "Get : Expr object, Token name",
-                    "This : Token keyword",
-                    "Super : Token keyword, Token method"
-            ));
-            defineAst(outputDir, "Stmt", Arrays.asList(
+                    "Get : Expr object, Token name, PropertyCache cache = new PropertyCache()",
+                    "This : Token keyword, int depth = -1, int slot = -1",
+                    "Super : Token keyword, Token method, int depth = -1, int thisDepth = -1"
+        ));
+        asts.put("Stmt", Arrays.asList(
                     "Expression : Expr expression",
                     "Print : Expr expresion",
                     "Var : Token name, Expr initializer",
@@ -44,12 +48,30 @@ public class GenerateAst {
                     "Return : Token keyword, Expr value",
                     "Class : Token name, Expr.Variable superclass, " +
                             "List<Stmt.Function> methods, List<Stmt.Function> getters"
-            ));
+        ));
+
+        try {
+            for (Map.Entry<String, List<String>> ast : asts.entrySet()) {
+                defineAst(outputDir, ast.getKey(), ast.getValue());
+            }
+            defineSerializer(outputDir, asts);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * @return The fields of a type definition, e.g. ["Token name", "int depth = -1"]
+     */
+    private static List<String> fieldsOf(String type) {
+        List<String> fields = new ArrayList<>();
+        if (type.split(":").length == 1) return fields;
+        for (String field : type.split(":")[1].trim().split(", ")) {
+            if (!field.isEmpty()) fields.add(field);
+        }
+        return fields;
+    }
+
     private static void defineAst(String outputDir, String baseName, List<String> types) throws IOException {
         String path = outputDir + "/" + baseName + ".java";
         PrintWriter writer = new PrintWriter(path, "UTF-8");
@@ -81,16 +103,25 @@ public class GenerateAst {
         writer.close();
     }
 
+    /**
+     * Fields with a default value (e.g. "int depth = -1") are not constructor parameters, they are mutable and
+     * filled in by later passes such as the Resolver
+     */
     private static void defineType(PrintWriter writer, String baseName, String className, String fieldList) {
         writer.println(" public static class " + className + " extends " + baseName + " {");
 
+        String[] fields = fieldList.split(", ");
+        List<String> parameters = new ArrayList<>();
+        for (String field : fields) {
+            if(field.isEmpty() || field.contains("=")) continue;
+            parameters.add(field);
+        }
+
         // Constructor. 
-        writer.println(" " + className + "(" + fieldList + ") {");
+        writer.println(" " + className + "(" + String.join(", ", parameters) + ") {");
 
         // Store parameters in fields. 
-        String[] fields = fieldList.split(", ");
-        for (String field : fields) {
-            if(field.isEmpty()) continue;
+        for (String field : parameters) {
             String name = field.split(" ")[1];
             writer.println(" this." + name + " = " + name + ";");
         }
@@ -109,10 +140,274 @@ public class GenerateAst {
 
         for (String field : fields) {
             if(field.isEmpty()) continue;
-            writer.println(" final " + field + ";");
+            if(field.contains("=")) {
+                writer.println(" " + field + ";");
+            } else {
+                writer.println(" final " + field + ";");
+            }
+        }
+
+        writer.println(" }");
+    }
+
+    /**
+     * Generates AstSerializer, which writes a resolved tree into a compact binary form and reads it back. Every node
+     * starts with a byte tag (its index in the type list + 1, 0 for null), followed by its fields in declaration
+     * order. Fields with a default value are only written if they hold what the Resolver computed (ints), the other
+     * ones are runtime caches that start out fresh after loading.
+     */
+    private static void defineSerializer(String outputDir, Map<String, List<String>> asts) throws IOException {
+        String path = outputDir + "/AstSerializer.java";
+        PrintWriter writer = new PrintWriter(path, "UTF-8");
+
+        writer.println("package si.trplan.lox;");
+        writer.println();
+        writer.println("import java.io.DataInputStream;");
+        writer.println("import java.io.DataOutputStream;");
+        writer.println("import java.io.IOException;");
+        writer.println("import java.nio.charset.StandardCharsets;");
+        writer.println("import java.util.ArrayList;");
+        writer.println("import java.util.HashMap;");
+        writer.println("import java.util.List;");
+        writer.println("import java.util.Map;");
+        writer.println();
+        writer.println("/**");
+        writer.println(" * Binary form of resolved syntax trees, generated by GenerateAst");
+        writer.println(" */");
+        writer.println("class AstSerializer {");
+        // Any change to the AST definitions changes the version, so files written by an older build are ignored
+        writer.println(" static final int VERSION = " + asts.toString().hashCode() + ";");
+        writer.println();
+
+        writer.println(" static class Writer {");
+        writer.println(" private final DataOutputStream out;");
+        writer.println(" // Strings already written, later occurrences are written as their index");
+        writer.println(" private final Map<String, Integer> strings = new HashMap<>();");
+        writer.println();
+        writer.println(" Writer(DataOutputStream out) {");
+        writer.println(" this.out = out;");
+        writer.println(" }");
+        for (Map.Entry<String, List<String>> ast : asts.entrySet()) {
+            defineWriteMethod(writer, ast.getKey(), ast.getValue());
+        }
+        writer.println();
+        writer.println(" void writeExprList(List<? extends Expr> list) throws IOException {");
+        writer.println(" out.writeInt(list.size());");
+        writer.println(" for (Expr expr : list) writeExpr(expr);");
+        writer.println(" }");
+        writer.println();
+        writer.println(" void writeStmtList(List<? extends Stmt> list) throws IOException {");
+        writer.println(" out.writeInt(list.size());");
+        writer.println(" for (Stmt stmt : list) writeStmt(stmt);");
+        writer.println(" }");
+        writer.println();
+        writer.println(" void writeTokenList(List<Token> list) throws IOException {");
+        writer.println(" out.writeInt(list.size());");
+        writer.println(" for (Token token : list) writeToken(token);");
+        writer.println(" }");
+        writer.println();
+        writer.println(" void writeToken(Token token) throws IOException {");
+        writer.println(" if (token == null) {");
+        writer.println(" out.writeByte(-1);");
+        writer.println(" return;");
+        writer.println(" }");
+        writer.println(" out.writeByte(token.type.ordinal());");
+        writer.println(" writeString(token.lexeme);");
+        writer.println(" writeValue(token.literal);");
+        writer.println(" out.writeInt(token.line);");
+        writer.println(" out.writeInt(token.symbol);");
+        writer.println(" }");
+        writer.println();
+        writer.println(" void writeValue(Object value) throws IOException {");
+        writer.println(" switch (value) {");
+        writer.println(" case null -> out.writeByte(0);");
+        writer.println(" case Boolean bool -> out.writeByte(bool ? 1 : 2);");
+        writer.println(" case Double number -> {");
+        writer.println(" out.writeByte(3);");
+        writer.println(" out.writeDouble(number);");
+        writer.println(" }");
+        writer.println(" case String string -> {");
+        writer.println(" out.writeByte(4);");
+        writer.println(" writeString(string);");
+        writer.println(" }");
+        writer.println(" default -> throw new IllegalArgumentException(\"Can't serialize literal \" + value);");
+        writer.println(" }");
+        writer.println(" }");
+        writer.println();
+        writer.println(" void writeString(String string) throws IOException {");
+        writer.println(" Integer index = strings.get(string);");
+        writer.println(" if (index != null) {");
+        writer.println(" out.writeInt(index);");
+        writer.println(" return;");
+        writer.println(" }");
+        writer.println(" // A new string is written as the next index followed by its UTF-8 bytes");
+        writer.println(" out.writeInt(strings.size());");
+        writer.println(" byte[] bytes = string.getBytes(StandardCharsets.UTF_8);");
+        writer.println(" out.writeInt(bytes.length);");
+        writer.println(" out.write(bytes);");
+        writer.println(" strings.put(string, strings.size());");
+        writer.println(" }");
+        writer.println(" }");
+        writer.println();
+
+        writer.println(" static class Reader {");
+        writer.println(" private final DataInputStream in;");
+        writer.println(" private final List<String> strings = new ArrayList<>();");
+        writer.println();
+        writer.println(" Reader(DataInputStream in) {");
+        writer.println(" this.in = in;");
+        writer.println(" }");
+        for (Map.Entry<String, List<String>> ast : asts.entrySet()) {
+            defineReadMethod(writer, ast.getKey(), ast.getValue());
+        }
+        writer.println();
+        writer.println(" <T extends Expr> List<T> readExprList(Class<T> type) throws IOException {");
+        writer.println(" int size = in.readInt();");
+        writer.println(" List<T> list = new ArrayList<>(size);");
+        writer.println(" for (int i = 0; i < size; i++) list.add(type.cast(readExpr()));");
+        writer.println(" return list;");
+        writer.println(" }");
+        writer.println();
+        writer.println(" <T extends Stmt> List<T> readStmtList(Class<T> type) throws IOException {");
+        writer.println(" int size = in.readInt();");
+        writer.println(" List<T> list = new ArrayList<>(size);");
+        writer.println(" for (int i = 0; i < size; i++) list.add(type.cast(readStmt()));");
+        writer.println(" return list;");
+        writer.println(" }");
+        writer.println();
+        writer.println(" List<Token> readTokenList() throws IOException {");
+        writer.println(" int size = in.readInt();");
+        writer.println(" List<Token> list = new ArrayList<>(size);");
+        writer.println(" for (int i = 0; i < size; i++) list.add(readToken());");
+        writer.println(" return list;");
+        writer.println(" }");
+        writer.println();
+        writer.println(" Token readToken() throws IOException {");
+        writer.println(" byte type = in.readByte();");
+        writer.println(" if (type == -1) return null;");
+        writer.println(" return new Token(TokenType.values()[type], readString(), readValue(), in.readInt(), in.readInt());");
+        writer.println(" }");
+        writer.println();
+        writer.println(" Object readValue() throws IOException {");
+        writer.println(" byte tag = in.readByte();");
+        writer.println(" return switch (tag) {");
+        writer.println(" case 0 -> null;");
+        writer.println(" case 1 -> true;");
+        writer.println(" case 2 -> false;");
+        writer.println(" case 3 -> in.readDouble();");
+        writer.println(" // String values are interned like the ones the Scanner makes");
+        writer.println(" case 4 -> readString().intern();");
+        writer.println(" default -> throw new IOException(\"Bad literal tag \" + tag);");
+        writer.println(" };");
+        writer.println(" }");
+        writer.println();
+        writer.println(" String readString() throws IOException {");
+        writer.println(" int index = in.readInt();");
+        writer.println(" if (index < strings.size()) return strings.get(index);");
+        writer.println(" byte[] bytes = new byte[in.readInt()];");
+        writer.println(" in.readFully(bytes);");
+        writer.println(" String string = new String(bytes, StandardCharsets.UTF_8);");
+        writer.println(" strings.add(string);");
+        writer.println(" return string;");
+        writer.println(" }");
+        writer.println(" }");
+
+        writer.println("}");
+        writer.close();
+    }
+
+    private static void defineWriteMethod(PrintWriter writer, String baseName, List<String> types) {
+        writer.println();
+        String parameter = baseName.toLowerCase();
+        writer.println(" void write" + baseName + "(" + baseName + " " + parameter + ") throws IOException {");
+        writer.println(" switch (" + parameter + ") {");
+        writer.println(" case null -> out.writeByte(0);");
+        for (int i = 0; i < types.size(); i++) {
+            String className = types.get(i).split(":")[0].trim();
+            writer.println(" case " + baseName + "." + className + " node -> {");
+            writer.println(" out.writeByte(" + (i + 1) + ");");
+            for (String field : fieldsOf(types.get(i))) {
+                String type = field.split(" ")[0];
+                String access = "node." + field.split(" ")[1];
+                String write = writeField(type, access);
+                if (write != null) {
+                    writer.println(" " + write + ";");
+                } else if (!field.contains("=")) {
+                    throw new IllegalArgumentException("Can't serialize field " + field);
+                }
+            }
+            writer.println(" }");
         }
+        writer.println(" default -> throw new IllegalArgumentException(\"Unknown node \" + " + parameter + ");");
+        writer.println(" }");
+        writer.println(" }");
+    }
+
+    private static void defineReadMethod(PrintWriter writer, String baseName, List<String> types) {
+        writer.println();
+        writer.println(" " + baseName + " read" + baseName + "() throws IOException {");
+        writer.println(" byte tag = in.readByte();");
+        writer.println(" switch (tag) {");
+        writer.println(" case 0: return null;");
+        for (int i = 0; i < types.size(); i++) {
+            String className = types.get(i).split(":")[0].trim();
+            List<String> arguments = new ArrayList<>();
+            List<String> assignments = new ArrayList<>();
+            for (String field : fieldsOf(types.get(i))) {
+                String read = readField(field.split(" ")[0]);
+                if (!field.contains("=")) {
+                    arguments.add(read);
+                } else if (read != null) {
+                    assignments.add("node." + field.split(" ")[1] + " = " + read + ";");
+                }
+            }
 
+            writer.println(" case " + (i + 1) + ": {");
+            // Arguments are evaluated left to right, so the fields are read in the order they were written
+            writer.println(" " + baseName + "." + className + " node = new " + baseName + "." + className + "(" +
+                    String.join(", ", arguments) + ");");
+            for (String assignment : assignments) {
+                writer.println(" " + assignment);
+            }
+            writer.println(" return node;");
+            writer.println(" }");
+        }
+        writer.println(" default: throw new IOException(\"Bad " + baseName + " tag \" + tag);");
         writer.println(" }");
+        writer.println(" }");
+    }
+
+    /**
+     * @return Statement writing a field of the given type, or null if the type isn't serialized
+     */
+    private static String writeField(String type, String access) {
+        if (type.equals("Token")) return "writeToken(" + access + ")";
+        if (type.equals("Object")) return "writeValue(" + access + ")";
+        if (type.equals("int")) return "out.writeInt(" + access + ")";
+        if (type.equals("List<Token>")) return "writeTokenList(" + access + ")";
+        if (type.startsWith("List<Expr")) return "writeExprList(" + access + ")";
+        if (type.startsWith("List<Stmt")) return "writeStmtList(" + access + ")";
+        if (type.startsWith("Expr")) return "writeExpr(" + access + ")";
+        if (type.startsWith("Stmt")) return "writeStmt(" + access + ")";
+        return null;
+    }
+
+    /**
+     * @return Expression reading a field of the given type, or null if the type isn't serialized
+     */
+    private static String readField(String type) {
+        if (type.equals("Token")) return "readToken()";
+        if (type.equals("Object")) return "readValue()";
+        if (type.equals("int")) return "in.readInt()";
+        if (type.equals("List<Token>")) return "readTokenList()";
+        if (type.startsWith("List<Expr")) return "readExprList(" + type.substring(5, type.length() - 1) + ".class)";
+        if (type.startsWith("List<Stmt")) return "readStmtList(" + type.substring(5, type.length() - 1) + ".class)";
+        // Fields declared as a specific node type, e.g. Expr.Variable, need a cast
+        if (type.startsWith("Expr.")) return "(" + type + ") readExpr()";
+        if (type.startsWith("Stmt.")) return "(" + type + ") readStmt()";
+        if (type.equals("Expr")) return "readExpr()";
+        if (type.equals("Stmt")) return "readStmt()";
+        return null;
     }
 
     private static void defineVisitor(PrintWriter writer, String baseName, List<String> types) {
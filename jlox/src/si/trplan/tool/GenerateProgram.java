@@ -0,0 +1,182 @@
+package si.trplan.tool;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Helper script that writes valid Lox programs of a given size to measure how the front end scales, see
+ * si.trplan.lox.FrontEndBenchmark. The program is a sequence of independent units of the chosen shape:
+ * <ul>
+ *     <li>nesting: functions with blocks nested depth levels deep, each declaring and using a local</li>
+ *     <li>classes: chains of depth subclasses with an initializer, a method calling super and a getter</li>
+ *     <li>expressions: functions returning an arithmetic chain of length operators</li>
+ *     <li>strings: global variables holding string literals of length characters</li>
+ *     <li>mixed: all of the above in turn</li>
+ * </ul>
+ * Every local is used, so the programs also make it through the Resolver without errors.
+ */
+public class GenerateProgram {
+    private final Writer writer;
+    private final int depth;
+    private final int length;
+    private int units = 0;
+    // The class the next one extends and how long its chain of superclasses is, -1 to start a new chain
+    private int lastClass = -1;
+    private int chain = 0;
+
+    private GenerateProgram(Writer writer, int depth, int length) {
+        this.writer = writer;
+        this.depth = depth;
+        this.length = length;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3 || args.length > 5) {
+            System.err.println("Usage: generate_program <output file> <size in MB> " +
+                    "<nesting|classes|expressions|strings|mixed> [depth] [length]");
+            System.exit(64);
+        }
+
+        String path = args[0];
+        long size = (long) (Double.parseDouble(args[1]) * 1024 * 1024);
+        String shape = args[2];
+        // Nesting and chain lengths stay well below what the recursive tree walks can handle
+        int depth = args.length > 3 ? Integer.parseInt(args[3]) : 32;
+        int length = args.length > 4 ? Integer.parseInt(args[4]) : 64;
+
+        try (Writer out = new BufferedWriter(new FileWriter(path, StandardCharsets.UTF_8), 1 << 16)) {
+            CountingWriter counted = new CountingWriter(out);
+            GenerateProgram generator = new GenerateProgram(counted, depth, length);
+            while (counted.written < size) {
+                switch (shape) {
+                    case "nesting" -> generator.nesting();
+                    case "classes" -> generator.classes();
+                    case "expressions" -> generator.expressions();
+                    case "strings" -> generator.strings();
+                    case "mixed" -> generator.mixed();
+                    default -> {
+                        System.err.println("Unknown shape '" + shape + "'.");
+                        System.exit(64);
+                    }
+                }
+            }
+        }
+    }
+
+    private void mixed() throws IOException {
+        switch (units % 4) {
+            case 0 -> nesting();
+            case 1 -> classes();
+            case 2 -> expressions();
+            default -> strings();
+        }
+    }
+
+    private void nesting() throws IOException {
+        int unit = units++;
+        writer.write("fun nest" + unit + "(p) {\n");
+        writer.write("  var v0 = p;\n");
+        for (int i = 1; i <= depth; i++) {
+            indent(i);
+            writer.write("{\n");
+            indent(i + 1);
+            writer.write("var v" + i + " = v" + (i - 1) + " + " + i + ";\n");
+        }
+        indent(depth + 1);
+        writer.write("print v" + depth + ";\n");
+        for (int i = depth; i >= 1; i--) {
+            indent(i);
+            writer.write("}\n");
+        }
+        writer.write("  return v0;\n");
+        writer.write("}\n");
+    }
+
+    private void classes() throws IOException {
+        int unit = units++;
+        if (chain == depth) {
+            lastClass = -1;
+            chain = 0;
+        }
+        String superclass = lastClass >= 0 ? " < Class" + lastClass : "";
+        writer.write("class Class" + unit + superclass + " {\n");
+        writer.write("  init(a) {\n");
+        writer.write("    this.a = a;\n");
+        writer.write("  }\n");
+        writer.write("  method" + unit + "(x) {\n");
+        if (!superclass.isEmpty()) {
+            writer.write("    return super.method" + lastClass + "(x) + this.a;\n");
+        } else {
+            writer.write("    return x + this.a;\n");
+        }
+        writer.write("  }\n");
+        writer.write("  value {\n");
+        writer.write("    return this.a * 2;\n");
+        writer.write("  }\n");
+        writer.write("}\n");
+        lastClass = unit;
+        chain++;
+    }
+
+    private void expressions() throws IOException {
+        int unit = units++;
+        writer.write("fun expression" + unit + "(x) {\n");
+        writer.write("  return x");
+        String[] operators = {" + ", " - ", " * ", " / "};
+        for (int i = 0; i < length; i++) {
+            writer.write(operators[i % operators.length]);
+            // Every few operands are grouped to exercise the precedence levels
+            if (i % 8 == 7) {
+                writer.write("(x + " + (i + 1) + ")");
+            } else {
+                writer.write(Integer.toString(i + 1));
+            }
+        }
+        writer.write(";\n");
+        writer.write("}\n");
+    }
+
+    private void strings() throws IOException {
+        int unit = units++;
+        writer.write("var string" + unit + " = \"");
+        for (int i = 0; i < length; i++) {
+            writer.write((char) ('a' + (unit + i) % 26));
+        }
+        writer.write("\";\n");
+    }
+
+    private void indent(int level) throws IOException {
+        for (int i = 0; i < level; i++) writer.write("  ");
+    }
+
+    /**
+     * Keeps track of how many characters have been written, all of them are ASCII so that's also the size in bytes
+     */
+    private static class CountingWriter extends Writer {
+        private final Writer out;
+        long written = 0;
+
+        CountingWriter(Writer out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(char[] buffer, int offset, int length) throws IOException {
+            out.write(buffer, offset, length);
+            written += length;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+}
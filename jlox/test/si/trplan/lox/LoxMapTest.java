@@ -0,0 +1,52 @@
+package si.trplan.lox;
+
+import java.util.Objects;
+
+/**
+ * Checks the table housekeeping of LoxMap, which scripts can't observe
+ *
+ * Usage: lox_map_test
+ */
+public class LoxMapTest {
+    public static void main(String[] args) {
+        churnKeepsCapacityBounded();
+        growsWithLiveEntries();
+        System.out.println("LoxMapTest passed");
+    }
+
+    /**
+     * Putting a new key and removing it again leaves a tombstone each time, those must not make the table grow
+     */
+    private static void churnKeepsCapacityBounded() {
+        LoxMap map = new LoxMap();
+        map.put("kept", 1.0);
+        for (int i = 0; i < 1_000_000; i++) {
+            map.put((double) i, "value");
+            map.remove((double) i);
+        }
+        check(map.capacity() <= 16, "capacity after churn is " + map.capacity());
+        check(map.size() == 1, "size after churn is " + map.size());
+        check(Double.valueOf(1.0).equals(map.get("kept")), "lost the kept entry");
+        check(map.get(999_999.0) == null, "removed entry still there");
+    }
+
+    private static void growsWithLiveEntries() {
+        LoxMap map = new LoxMap();
+        for (int i = 0; i < 10_000; i++) {
+            map.put((double) i, (double) i * 2);
+        }
+        for (int i = 0; i < 10_000; i += 2) {
+            map.remove((double) i);
+        }
+        check(map.size() == 5_000, "size is " + map.size());
+        check(map.capacity() >= 5_000 / 0.75, "capacity " + map.capacity() + " too small for 5000 entries");
+        for (int i = 0; i < 10_000; i++) {
+            Object expected = i % 2 == 0 ? null : (double) i * 2;
+            check(Objects.equals(map.get((double) i), expected), "wrong value for " + i);
+        }
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) throw new AssertionError(message);
+    }
+}
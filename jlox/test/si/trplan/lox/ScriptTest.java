@@ -0,0 +1,174 @@
+package si.trplan.lox;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Runs every script under the scripts directory on both engines, each in a fresh JVM with --no-cache, and checks it
+ * against the expectations written in its comments:
+ * <pre>
+ * // expect: text                   the next line printed
+ * // expect error: text             a line of the compile errors, which make the script exit with 65
+ * // expect runtime error: text     the runtime error that ends the script with exit code 70
+ * // flags: --lazy                  extra command line flags for every run, with --cache the script runs twice on
+ *                                   a fresh cache directory: once storing its tree and once loading it
+ * // engines: tree                  only run it on the tree-walking Interpreter (or "vm"), for where they differ
+ * </pre>
+ * Usage: script_test [scripts directory]
+ */
+public class ScriptTest {
+    private static final String JAVA = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+
+    private static class Expectations {
+        final List<String> output = new ArrayList<>();
+        final List<String> errors = new ArrayList<>();
+        String runtimeError = null;
+        final List<String> flags = new ArrayList<>();
+        boolean tree = true;
+        boolean vm = true;
+
+        int exitCode() {
+            if (!errors.isEmpty()) return 65;
+            return runtimeError != null ? 70 : 0;
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Path directory = Paths.get(args.length > 0 ? args[0] : "test/scripts");
+        List<Path> scripts;
+        try (Stream<Path> files = Files.walk(directory)) {
+            scripts = files.filter(path -> path.toString().endsWith(".lox")).sorted().toList();
+        }
+
+        int failed = 0;
+        for (Path script : scripts) {
+            Expectations expected = parse(script);
+            if (expected.tree && !run(script, expected, false)) failed++;
+            if (expected.vm && !run(script, expected, true)) failed++;
+        }
+
+        System.out.printf("%d scripts, %d failed runs%n", scripts.size(), failed);
+        if (failed > 0) System.exit(1);
+    }
+
+    private static Expectations parse(Path script) throws IOException {
+        Expectations expected = new Expectations();
+        for (String line : Files.readAllLines(script, StandardCharsets.UTF_8)) {
+            int comment = line.indexOf("// ");
+            if (comment == -1) continue;
+            String directive = line.substring(comment + 3);
+            if (directive.startsWith("expect: ")) {
+                expected.output.add(directive.substring("expect: ".length()));
+            } else if (directive.startsWith("expect error: ")) {
+                expected.errors.add(directive.substring("expect error: ".length()));
+            } else if (directive.startsWith("expect runtime error: ")) {
+                expected.runtimeError = directive.substring("expect runtime error: ".length());
+            } else if (directive.startsWith("flags: ")) {
+                expected.flags.addAll(Arrays.asList(directive.substring("flags: ".length()).split(" ")));
+            } else if (directive.startsWith("engines: ")) {
+                List<String> engines = Arrays.asList(directive.substring("engines: ".length()).split(" "));
+                expected.tree = engines.contains("tree");
+                expected.vm = engines.contains("vm");
+            }
+        }
+        return expected;
+    }
+
+    private record Result(int exitCode, List<String> output, List<String> errors) {
+    }
+
+    /**
+     * @return Whether the script behaved as expected, otherwise the differences are printed
+     */
+    private static boolean run(Path script, Expectations expected, boolean vm) throws IOException,
+            InterruptedException {
+        List<String> command = new ArrayList<>(List.of(JAVA, "-cp", System.getProperty("java.class.path"),
+                Lox.class.getName()));
+        boolean cached = expected.flags.contains("--cache");
+        if (!cached) command.add("--no-cache");
+        if (vm) command.add("--vm");
+        command.addAll(expected.flags);
+        command.add(script.toString());
+        String name = script + (vm ? " (vm)" : "");
+
+        if (!cached) return check(name, expected, execute(command, null), List.of());
+
+        Path cache = Files.createTempDirectory("script_test");
+        try {
+            boolean passed = check(name + " storing", expected, execute(command, cache), List.of());
+            List<String> entries;
+            try (Stream<Path> files = Files.list(cache)) {
+                entries = files.map(path -> path.getFileName().toString()).toList();
+            }
+            List<String> problems = entries.size() == 1 && !entries.getFirst().endsWith(".tmp") ? List.of() :
+                    List.of("expected one cache entry, found " + entries);
+            return check(name + " loading", expected, execute(command, cache), problems) && passed;
+        } finally {
+            try (Stream<Path> files = Files.walk(cache)) {
+                for (Path path : files.sorted(Comparator.reverseOrder()).toList()) {
+                    Files.delete(path);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param cache Directory for the AST cache, or null
+     */
+    private static Result execute(List<String> command, Path cache) throws IOException, InterruptedException {
+        File errorFile = File.createTempFile("script_test", ".err");
+        ProcessBuilder builder = new ProcessBuilder(command).redirectError(errorFile);
+        builder.environment().remove("JLOX_CACHE_DIR");
+        if (cache != null) builder.environment().put("JLOX_CACHE_DIR", cache.toString());
+        Process process = builder.start();
+        List<String> output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8).lines()
+                .toList();
+        int exitCode = process.waitFor();
+        List<String> errors = Files.readAllLines(errorFile.toPath(), StandardCharsets.UTF_8);
+        errorFile.delete();
+        return new Result(exitCode, output, errors);
+    }
+
+    /**
+     * @param problems Ones the caller found already
+     * @return Whether there are no problems, otherwise they are printed
+     */
+    private static boolean check(String name, Expectations expected, Result result, List<String> problems) {
+        int exitCode = result.exitCode();
+        List<String> output = result.output();
+        List<String> errors = result.errors();
+
+        problems = new ArrayList<>(problems);
+        if (exitCode != expected.exitCode()) {
+            problems.add("exit code " + exitCode + ", expected " + expected.exitCode());
+        }
+        if (!output.equals(expected.output)) {
+            problems.add("printed " + output + ", expected " + expected.output);
+        }
+        if (expected.runtimeError != null && (errors.isEmpty() || !errors.getFirst().equals(expected.runtimeError))) {
+            problems.add("runtime error " + errors + ", expected " + expected.runtimeError);
+        }
+        for (String error : expected.errors) {
+            if (!errors.contains(error)) problems.add("missing error " + error + " in " + errors);
+        }
+        if (expected.exitCode() == 0 && !errors.isEmpty()) {
+            problems.add("unexpected errors " + errors);
+        }
+
+        if (problems.isEmpty()) return true;
+        System.out.println("FAIL " + name);
+        for (String problem : problems) {
+            System.out.println("    " + problem);
+        }
+        return false;
+    }
+}